@@ -0,0 +1,300 @@
+package fergusonmodel;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import stats.SimulationInfo;
+import util.RandomSource;
+
+/*
+ * How patches are laid out and connected (SimulationInfo.connectivityAlgorithm).
+ * Everything is precalculated per patch when the world is created, so exposures
+ * between patches don't depend on the layout:
+ *  - the deme of each patch (0=north, 1=tropics, 2=south), for seasonality
+ *  - the distribution of the number of exposures to other patches
+ *  - the patch that an exposure ends up in
+ */
+public abstract class Connectivity {
+
+   //Returned by DrawDestination when the exposure doesn't reach another patch
+   public static final int NONE = -1;
+   public static final int NORTH = 0;
+   public static final int TROPICS = 1;
+   public static final int SOUTH = 2;
+
+   public static Connectivity Create(SimulationInfo simulationInfo) {
+      switch (simulationInfo.connectivityAlgorithm) {
+         case Connectivity_Flat:
+         case Connectivity_Tropics:
+            return new UniformConnectivity(simulationInfo);
+         case Connectivity_Cylindrical:
+            return new CylindricalConnectivity(simulationInfo);
+         case Connectivity_CylindricalDirect:
+            return new GraphConnectivity(simulationInfo, CylindricalConnectivity.GetNeighbors(simulationInfo.numPatches));
+         case Connectivity_File:
+            File file = new File(String.format(GraphConnectivity.FILENAME, simulationInfo.numPatches));
+            GraphConnectivity connectivity = new GraphConnectivity(simulationInfo, null);
+            try {
+               connectivity.Load(file);
+            } catch (IOException ex) {
+               throw new RuntimeException(ex.getMessage(), ex);
+            }
+            return connectivity;
+         default:
+            throw new RuntimeException("Invalid connectivity algorithm: " + simulationInfo.connectivityAlgorithm);
+      }
+   }
+
+   protected Connectivity(SimulationInfo simulationInfo) {
+      numPatches = simulationInfo.numPatches;
+      demes = new int[numPatches];
+      for (int i = 0; i < numPatches; i++) {
+         demes[i] = GetDefaultDeme(simulationInfo, i);
+      }
+   }
+
+   public int GetDeme(int patch) {
+      return demes[patch];
+   }
+
+   //The distribution of the number of hosts in other patches exposed by a host in this patch
+   public abstract Sampler GetExposureSampler(int patch, int dayOfYear);
+
+   //The patch exposed by a host in this patch, or NONE
+   public abstract int DrawDestination(int patch, RandomSource random);
+
+   //Nothern and southern hemispheres, with tropics in between for Connectivity_Tropics (4:5:1 ratio)
+   protected static int GetDefaultDeme(SimulationInfo simulationInfo, int patch) {
+      int numPatches = simulationInfo.numPatches;
+      if (simulationInfo.connectivityAlgorithm == SimulationInfo.Algorithm.Connectivity_Tropics) {
+         if (patch < numPatches * 4 / 10) {
+            return NORTH;
+         } else if (patch < numPatches * 9 / 10) {
+            return TROPICS;
+         } else {
+            return SOUTH;
+         }
+      } else {
+         return patch >= numPatches / 2 ? SOUTH : NORTH;
+      }
+   }
+   protected int numPatches;
+   protected int[] demes;
+
+   //Every patch has the same contact rate with every other patch
+   protected static class UniformConnectivity extends Connectivity {
+
+      public UniformConnectivity(SimulationInfo simulationInfo) {
+         super(simulationInfo);
+      }
+
+      @Override
+      public Sampler GetExposureSampler(int patch, int dayOfYear) {
+         return Main.POISSON_GLOBAL_SAMPLERS[dayOfYear];
+      }
+
+      @Override
+      public int DrawDestination(int patch, RandomSource random) {
+         int destination = random.nextInt(numPatches - 1);
+         if (destination >= patch) {
+            ++destination;
+         }
+         return destination;
+      }
+   }
+
+   //Patches are in 4 rows (2 per hemisphere), wrapped into a cylinder, and only neighbors are in
+   //contact. Exposures are drawn as if every patch were in contact, and the ones that don't reach a
+   //neighbor are dropped (this keeps results the same as before this class existed).
+   protected static class CylindricalConnectivity extends UniformConnectivity {
+
+      public CylindricalConnectivity(SimulationInfo simulationInfo) {
+         super(simulationInfo);
+         neighbors = GetNeighbors(numPatches);
+      }
+
+      @Override
+      public int DrawDestination(int patch, RandomSource random) {
+         int destination = super.DrawDestination(patch, random);
+         return neighbors[patch][destination] ? destination : NONE;
+      }
+
+      public static boolean[][] GetNeighbors(int numPatches) {
+         int patchesPerRow = numPatches / 4;
+         boolean[][] neighbors = new boolean[numPatches][numPatches];
+         for (int patch1 = 0; patch1 < numPatches; patch1++) {
+            for (int patch2 = 0; patch2 < numPatches; patch2++) {
+               if (patch1 == patch2) {
+                  continue;
+               }
+               int row1 = patch1 / patchesPerRow;
+               int col1 = patch1 % patchesPerRow;
+               int row2 = patch2 / patchesPerRow;
+               int col2 = patch2 % patchesPerRow;
+               //See if the patches are neighbors
+               if (col1 == col2 && Math.abs(row1 - row2) == 1) {
+                  neighbors[patch1][patch2] = true;
+               } else if (row1 == row2) {
+                  int delta = (patchesPerRow + (col1 - col2)) % patchesPerRow;
+                  if (delta == 1 || delta == patchesPerRow - 1) {
+                     neighbors[patch1][patch2] = true;
+                  }
+               }
+            }
+         }
+         return neighbors;
+      }
+      protected boolean[][] neighbors;
+   }
+
+   //An arbitrary directed graph of patches, where each edge has a weight (the contact rate relative
+   //to Connectivity_Flat, where every pair of patches has a weight of 1). Exposures are only drawn
+   //for the patches a patch is connected to.
+   protected static class GraphConnectivity extends Connectivity {
+
+      public static final String FILENAME = "connectivity-%d.txt";
+
+      //Creates a graph from an adjacency matrix (every edge has a weight of 1), or an empty graph
+      public GraphConnectivity(SimulationInfo simulationInfo, boolean[][] adjacency) {
+         super(simulationInfo);
+         this.simulationInfo = simulationInfo;
+         weights = new double[numPatches][numPatches];
+         if (adjacency != null) {
+            for (int i = 0; i < numPatches; i++) {
+               for (int j = 0; j < numPatches; j++) {
+                  weights[i][j] = adjacency[i][j] ? 1 : 0;
+               }
+            }
+         }
+         Build();
+      }
+
+      /*
+       * Reads the graph from a text file, one edge or deme per line:
+       *   <from patch> <to patch> [weight, default 1]
+       *   deme <patch> <north|tropics|south>
+       * Edges are directed, and blank lines and lines starting with # are ignored.
+       * Patches that aren't given a deme are split into hemispheres like Connectivity_Flat.
+       */
+      public void Load(File file) throws IOException {
+         if (!file.exists()) {
+            throw new IOException("Couldn't load connectivity file! (Does " + file + " exist?)");
+         }
+         try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            int lineNumber = 0;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+               ++lineNumber;
+               line = line.trim();
+               if (line.isEmpty() || line.startsWith("#")) {
+                  continue;
+               }
+               String[] fields = line.split("\\s+");
+               try {
+                  if (fields[0].equals("deme") && fields.length == 3) {
+                     demes[GetPatch(fields[1])] = ParseDeme(fields[2]);
+                  } else if (fields.length == 2 || fields.length == 3) {
+                     int from = GetPatch(fields[0]);
+                     int to = GetPatch(fields[1]);
+                     double weight = (fields.length == 3 ? Double.parseDouble(fields[2]) : 1);
+                     if (from == to || weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight)) {
+                        throw new IllegalArgumentException("bad edge");
+                     }
+                     weights[from][to] = weight;
+                  } else {
+                     throw new IllegalArgumentException("wrong number of fields");
+                  }
+               } catch (IllegalArgumentException ex) {
+                  throw new IOException(file + " line " + lineNumber + ": " + ex.getMessage() + " [" + line + "]");
+               }
+            }
+         }
+         Build();
+      }
+
+      @Override
+      public Sampler GetExposureSampler(int patch, int dayOfYear) {
+         return exposureSamplers[patch][dayOfYear];
+      }
+
+      @Override
+      public int DrawDestination(int patch, RandomSource random) {
+         return destinations[patch][destinationSamplers[patch].Draw(random.nextDouble())];
+      }
+
+      //Precalculates the samplers for each patch, from the weights
+      protected void Build() {
+         destinations = new int[numPatches][];
+         destinationSamplers = new Sampler[numPatches];
+         exposureSamplers = new Sampler[numPatches][];
+         //Patches with the same total weight share exposure samplers
+         ArrayList<Double> totals = new ArrayList<>();
+         ArrayList<Sampler[]> samplers = new ArrayList<>();
+         for (int i = 0; i < numPatches; i++) {
+            int numDestinations = 0;
+            double total = 0;
+            for (int j = 0; j < numPatches; j++) {
+               if (weights[i][j] > 0) {
+                  ++numDestinations;
+                  total += weights[i][j];
+               }
+            }
+            if (numDestinations == 0) {
+               //No contact with other patches (the exposure sampler always draws 0, so this is never used)
+               destinations[i] = new int[]{NONE};
+               destinationSamplers[i] = Sampler.Create(new double[]{1}, simulationInfo.samplerAlgorithm);
+            } else {
+               destinations[i] = new int[numDestinations];
+               double[] cdf = new double[numDestinations];
+               double sum = 0;
+               int index = 0;
+               for (int j = 0; j < numPatches; j++) {
+                  if (weights[i][j] > 0) {
+                     sum += weights[i][j];
+                     destinations[i][index] = j;
+                     cdf[index] = sum / total;
+                     ++index;
+                  }
+               }
+               //Make sure the last destination is always drawn instead of the tail
+               cdf[numDestinations - 1] = 1;
+               destinationSamplers[i] = Sampler.Create(cdf, simulationInfo.samplerAlgorithm);
+            }
+            int cached = totals.indexOf(total);
+            if (cached < 0) {
+               totals.add(total);
+               samplers.add(Sampler.Create(Main.GetSeasonalPoisson(simulationInfo.R0_global * total), simulationInfo.samplerAlgorithm));
+               cached = samplers.size() - 1;
+            }
+            exposureSamplers[i] = samplers.get(cached);
+         }
+      }
+
+      protected int GetPatch(String field) {
+         int patch = Integer.parseInt(field);
+         if (patch < 0 || patch >= numPatches) {
+            throw new IllegalArgumentException("no patch " + patch);
+         }
+         return patch;
+      }
+
+      protected static int ParseDeme(String field) {
+         switch (field) {
+            case "north":
+               return NORTH;
+            case "tropics":
+               return TROPICS;
+            case "south":
+               return SOUTH;
+            default:
+               throw new IllegalArgumentException("unknown deme " + field);
+         }
+      }
+      protected SimulationInfo simulationInfo;
+      protected double[][] weights;
+      protected int[][] destinations;
+      protected Sampler[] destinationSamplers;
+      protected Sampler[][] exposureSamplers;
+   }
+}
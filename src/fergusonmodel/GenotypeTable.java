@@ -0,0 +1,108 @@
+package fergusonmodel;
+
+/*
+ * Maps genotypes to the strain that's currently carrying them (Strain_Interned).
+ * Genotypes are keyed by the strain's packed genome (two longs), so lookups
+ * don't allocate. Collisions are resolved by linear probing, and removal
+ * shifts entries back instead of leaving tombstones, so the table never needs
+ * to be cleaned up.
+ *
+ * Nothing is synchronized - ParallelEngine's phases only call Get, and strains
+ * are put and removed between phases.
+ */
+public class GenotypeTable {
+
+   public GenotypeTable() {
+      keysLow = new long[INITIAL_CAPACITY];
+      keysHigh = new long[INITIAL_CAPACITY];
+      values = new Strain[INITIAL_CAPACITY];
+      size = 0;
+   }
+
+   //Returns the strain with the given genome, or null if the genotype isn't in the table
+   public Strain Get(long low, long high) {
+      int mask = values.length - 1;
+      for (int i = Hash(low, high) & mask; values[i] != null; i = (i + 1) & mask) {
+         if (keysLow[i] == low && keysHigh[i] == high) {
+            return values[i];
+         }
+      }
+      return null;
+   }
+
+   //Adds a strain, unless there's already a strain with the same genotype in the table
+   public void Put(Strain strain) {
+      if ((size + 1) * 2 > values.length) {
+         Resize(values.length * 2);
+      }
+      long low = strain.genomeLow;
+      long high = strain.genomeHigh;
+      int mask = values.length - 1;
+      int i = Hash(low, high) & mask;
+      while (values[i] != null) {
+         if (keysLow[i] == low && keysHigh[i] == high) {
+            return;
+         }
+         i = (i + 1) & mask;
+      }
+      keysLow[i] = low;
+      keysHigh[i] = high;
+      values[i] = strain;
+      ++size;
+   }
+
+   //Removes a strain, if it's the one in the table for its genotype
+   public void Remove(Strain strain) {
+      long low = strain.genomeLow;
+      long high = strain.genomeHigh;
+      int mask = values.length - 1;
+      int i = Hash(low, high) & mask;
+      while (values[i] != null && !(keysLow[i] == low && keysHigh[i] == high)) {
+         i = (i + 1) & mask;
+      }
+      if (values[i] != strain) {
+         return;
+      }
+      //Shift later entries in the probe sequence back into the hole
+      int hole = i;
+      for (int j = (hole + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+         int home = Hash(keysLow[j], keysHigh[j]) & mask;
+         //Move the entry if its home isn't cyclically in (hole, j]
+         if (((j - home) & mask) >= ((j - hole) & mask)) {
+            keysLow[hole] = keysLow[j];
+            keysHigh[hole] = keysHigh[j];
+            values[hole] = values[j];
+            hole = j;
+         }
+      }
+      values[hole] = null;
+      --size;
+   }
+
+   public int GetSize() {
+      return size;
+   }
+
+   protected void Resize(int capacity) {
+      Strain[] oldValues = values;
+      keysLow = new long[capacity];
+      keysHigh = new long[capacity];
+      values = new Strain[capacity];
+      size = 0;
+      for (Strain strain : oldValues) {
+         if (strain != null) {
+            Put(strain);
+         }
+      }
+   }
+
+   protected static int Hash(long low, long high) {
+      long h = (low ^ Long.rotateLeft(high, 32)) * 0x9E3779B97F4A7C15L;
+      return (int) (h ^ (h >>> 32));
+   }
+   protected static final int INITIAL_CAPACITY = 64;
+   protected long[] keysLow;
+   protected long[] keysHigh;
+   protected Strain[] values;
+   protected int size;
+}
@@ -0,0 +1,295 @@
+package fergusonmodel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import stats.SimulationInfo;
+import util.LinkedHashMap;
+
+/*
+ * All host state lives in flat primitive arrays indexed by a global host index
+ * (patchID * hostsPerPatch + id). This replaces the old object-per-host layout,
+ * which spent several GB on object headers and a separate immune history array
+ * for every host.
+ */
+public class HostStore {
+
+   public static final int NO_STRAIN = -1;
+   public static final int NEVER_INFECTED = Integer.MIN_VALUE;
+   //Hosts are exposed (incubating) for INCUBATION_DAYS after they're infected, then infectious until they
+   //recover INFECTION_DAYS after they were infected
+   public static final int INCUBATION_DAYS = 2;
+   public static final int INFECTION_DAYS = 6;
+
+   public HostStore(SimulationInfo simulationInfo) {
+      numPatches = simulationInfo.numPatches;
+      hostsPerPatch = simulationInfo.hostsPerPatch;
+      numHosts = numPatches * hostsPerPatch;
+      //boolean[4][3][20] (sites, codons/site, possible codons), packed into longs
+      historyBits = simulationInfo.numEpitopes * simulationInfo.codonsPerEpitope * 20;
+      historyWords = (historyBits + 63) / 64;
+      numCodons = simulationInfo.numEpitopes * simulationInfo.codonsPerEpitope;
+      lastInfectionDate = new int[numHosts];
+      recentInfections = new int[numPatches * RECENT_DAYS];
+      everInfected = new int[numPatches];
+      date = 0;
+      lastInfectionStrain = new int[numHosts];
+      immuneHistory = new long[numHosts * historyWords];
+      numNeighbors = new byte[hostsPerPatch];
+      neighborIndex = new int[hostsPerPatch];
+      strains = new Strain[DEFAULT_STRAIN_SLOTS];
+      numStrainSlots = 0;
+      registryThread = Thread.currentThread();
+      for (int i = 0; i < numHosts; i++) {
+         lastInfectionDate[i] = NEVER_INFECTED;
+         lastInfectionStrain[i] = NO_STRAIN;
+      }
+   }
+
+   public int GetHost(int patchID, int id) {
+      return patchID * hostsPerPatch + id;
+   }
+
+   public int GetPatch(int host) {
+      return host / hostsPerPatch;
+   }
+
+   public int GetID(int host) {
+      return host % hostsPerPatch;
+   }
+
+   //The identifier used in save states (compatible with the old Host.hashCode)
+   public int GetSaveID(int host) {
+      return (GetPatch(host) << 24) | GetID(host);
+   }
+
+   public int GetHostFromSaveID(int saveID) {
+      return GetHost((saveID >> 24) & 0xFF, saveID & 0xFFFFFF);
+   }
+
+   public int GetDate() {
+      return date;
+   }
+
+   //Moves the SEIR counters to a new day (World calls this whenever its date changes)
+   public void SetDate(int newDate) {
+      for (int day = Math.max(date + 1, newDate - RECENT_DAYS + 1); day <= newDate; day++) {
+         //This slot last held infections from RECENT_DAYS ago, which are all recovered by now
+         for (int patch = 0; patch < numPatches; patch++) {
+            recentInfections[patch * RECENT_DAYS + (day & (RECENT_DAYS - 1))] = 0;
+         }
+      }
+      if (newDate < date) {
+         //Going backwards, so the recent counts are meaningless (this only happens before any hosts are loaded)
+         Arrays.fill(recentInfections, 0);
+      }
+      date = newDate;
+   }
+
+   //All changes to lastInfectionDate go through here so the per-patch SEIR counters stay up to date
+   public void SetLastInfectionDate(int host, int newDate) {
+      int oldDate = lastInfectionDate[host];
+      if (oldDate == newDate) {
+         return;
+      }
+      int patch = GetPatch(host);
+      if (oldDate != NEVER_INFECTED) {
+         --everInfected[patch];
+         if (date - oldDate < RECENT_DAYS) {
+            --recentInfections[patch * RECENT_DAYS + (oldDate & (RECENT_DAYS - 1))];
+         }
+      }
+      if (newDate != NEVER_INFECTED) {
+         ++everInfected[patch];
+         if (date - newDate < RECENT_DAYS) {
+            ++recentInfections[patch * RECENT_DAYS + (newDate & (RECENT_DAYS - 1))];
+         }
+      }
+      lastInfectionDate[host] = newDate;
+   }
+
+   //The number of hosts in a patch who were infected within the given range of days ago (inclusive)
+   protected int GetRecentInfections(int patch, int minDaysAgo, int maxDaysAgo) {
+      int count = 0;
+      for (int daysAgo = minDaysAgo; daysAgo <= maxDaysAgo; daysAgo++) {
+         count += recentInfections[patch * RECENT_DAYS + ((date - daysAgo) & (RECENT_DAYS - 1))];
+      }
+      return count;
+   }
+
+   public int GetNumNaive(int patch) {
+      return hostsPerPatch - everInfected[patch];
+   }
+
+   public int GetNumExposed(int patch) {
+      return GetRecentInfections(patch, 0, INCUBATION_DAYS - 1);
+   }
+
+   public int GetNumInfectious(int patch) {
+      return GetRecentInfections(patch, INCUBATION_DAYS, INFECTION_DAYS - 1);
+   }
+
+   public int GetNumRecovered(int patch) {
+      return everInfected[patch] - GetRecentInfections(patch, 0, INFECTION_DAYS - 1);
+   }
+
+   public void Reset(int host) {
+      SetLastInfectionDate(host, NEVER_INFECTED);
+      lastInfectionStrain[host] = NO_STRAIN;
+      int offset = host * historyWords;
+      for (int i = 0; i < historyWords; i++) {
+         immuneHistory[offset + i] = 0;
+      }
+   }
+
+   public boolean IsIncubating(int host, int date) {
+      return lastInfectionDate[host] != NEVER_INFECTED && (date - lastInfectionDate[host]) < INCUBATION_DAYS;
+   }
+
+   public boolean IsInfectious(int host, int date) {
+      return lastInfectionDate[host] != NEVER_INFECTED && (date - lastInfectionDate[host]) >= INCUBATION_DAYS && (date - lastInfectionDate[host]) < INFECTION_DAYS;
+   }
+
+   public boolean IsSick(int host, int date) {
+      return lastInfectionDate[host] != NEVER_INFECTED && (date - lastInfectionDate[host]) < INFECTION_DAYS;
+   }
+
+   public Strain GetStrain(int host) {
+      int slot = lastInfectionStrain[host];
+      return slot == NO_STRAIN ? null : strains[slot];
+   }
+
+   public void Infect(int host, int date, Strain strain) {
+      SetLastInfectionDate(host, date);
+      lastInfectionStrain[host] = GetSlot(strain);
+      //Update the immune history
+      int offset = host * historyWords;
+      for (int i = 0; i < historyWords; i++) {
+         immuneHistory[offset + i] |= strain.immuneMask[i];
+      }
+   }
+
+   public int GetImmunityDistance(int host, Strain strain) {
+      //Each codon sets exactly one bit in the strain's mask, so count the codons the host has already seen
+      int seen = 0;
+      int offset = host * historyWords;
+      for (int i = 0; i < historyWords; i++) {
+         seen += Long.bitCount(immuneHistory[offset + i] & strain.immuneMask[i]);
+      }
+      return numCodons - seen;
+   }
+
+   //Returns the registry slot for this strain, registering it if necessary. Looking up a strain that's
+   //already registered only reads the registry, so ParallelEngine's threads can infect hosts with the
+   //strains of other hosts, but new strains have to be registered by the thread running the day.
+   protected int GetSlot(Strain strain) {
+      if (strain.slot >= 0 && strain.slot < numStrainSlots && strains[strain.slot] == strain) {
+         return strain.slot;
+      }
+      CheckRegistryThread();
+      if (numStrainSlots == strains.length) {
+         CompactStrains();
+      }
+      strain.slot = numStrainSlots;
+      strains[numStrainSlots++] = strain;
+      return strain.slot;
+   }
+
+   //Drops strains that are no longer referenced by any host. This is amortized
+   //over many registrations, so the infection path never has to reference count.
+   protected void CompactStrains() {
+      CheckRegistryThread();
+      int[] remap = new int[numStrainSlots];
+      for (int i = 0; i < numHosts; i++) {
+         if (lastInfectionStrain[i] != NO_STRAIN) {
+            remap[lastInfectionStrain[i]] = 1;
+         }
+      }
+      int live = 0;
+      for (int i = 0; i < numStrainSlots; i++) {
+         if (remap[i] != 0) {
+            strains[live] = strains[i];
+            strains[live].slot = live;
+            remap[i] = live++;
+         } else {
+            strains[i].slot = NO_STRAIN;
+         }
+      }
+      for (int i = live; i < numStrainSlots; i++) {
+         strains[i] = null;
+      }
+      numStrainSlots = live;
+      for (int i = 0; i < numHosts; i++) {
+         if (lastInfectionStrain[i] != NO_STRAIN) {
+            lastInfectionStrain[i] = remap[lastInfectionStrain[i]];
+         }
+      }
+      //Keep plenty of headroom so compaction stays rare
+      if (numStrainSlots * 2 > strains.length) {
+         Strain[] temp = new Strain[strains.length * 2];
+         System.arraycopy(strains, 0, temp, 0, numStrainSlots);
+         strains = temp;
+      }
+   }
+
+   //The registry isn't synchronized, so it's only modified by the thread that created the store (the one
+   //running the daily update) - never by the pool while ParallelEngine's phases are reading it
+   protected void CheckRegistryThread() {
+      if (Thread.currentThread() != registryThread) {
+         throw new IllegalStateException("The strain registry can only be modified by thread " + registryThread.getName() + ", not " + Thread.currentThread().getName());
+      }
+   }
+
+   public void SaveState(int host, DataOutput out) throws IOException {
+      out.writeInt(lastInfectionDate[host]);
+      Strain strain = GetStrain(host);
+      out.writeBoolean(strain != null);
+      if (strain != null) {
+         out.writeInt(strain.stats.id);
+      }
+      //Same byte layout as the old byte[] immune history
+      int offset = host * historyWords;
+      for (int i = 0; i < (historyBits + 7) / 8; i++) {
+         out.writeByte((int) (immuneHistory[offset + i / 8] >>> ((i % 8) * 8)));
+      }
+   }
+
+   public void LoadState(int host, DataInput in, LinkedHashMap<Integer, Strain> savedStrains) throws IOException {
+      Reset(host);
+      SetLastInfectionDate(host, in.readInt());
+      if (in.readBoolean()) {
+         int strainID = in.readInt();
+         lastInfectionStrain[host] = GetSlot(savedStrains.Get(strainID));
+      }
+      int offset = host * historyWords;
+      for (int i = 0; i < (historyBits + 7) / 8; i++) {
+         immuneHistory[offset + i / 8] |= ((long) in.readUnsignedByte()) << ((i % 8) * 8);
+      }
+   }
+   protected static final int DEFAULT_STRAIN_SLOTS = 1024;
+   //Number of days of infections counted by day (a power of 2, covering at least the INFECTION_DAYS of an infection)
+   protected static final int RECENT_DAYS = 8;
+   public int numPatches;
+   public int hostsPerPatch;
+   public int numHosts;
+   protected int historyBits;
+   protected int historyWords;
+   protected int numCodons;
+   //Use SetLastInfectionDate to modify
+   public int[] lastInfectionDate;
+   public int[] lastInfectionStrain; //Slot in the strain registry
+   public long[] immuneHistory;
+   //The neighborhood map is shared by all patches (indexed by a host's ID within its patch)
+   public byte[] numNeighbors;
+   public int[] neighborIndex;
+   public int[] neighborList;
+   //Strain registry, so hosts only need to store an int
+   protected Strain[] strains;
+   protected int numStrainSlots;
+   protected Thread registryThread;
+   //Per-patch SEIR counters: infections by day for the last RECENT_DAYS days, and everyone who isn't naive
+   protected int date;
+   protected int[] recentInfections;
+   protected int[] everInfected;
+}
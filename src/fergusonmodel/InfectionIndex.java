@@ -0,0 +1,316 @@
+package fergusonmodel;
+
+/*
+ * Keeps track of which hosts are currently infected with each strain. Hosts are
+ * linked together with int arrays indexed by global host index, and strains are
+ * linked together through fields on the Strain itself, so adding, removing and
+ * moving an infection never allocates. A host can be in the list of at most one
+ * strain at a time, and the index remembers which one, so removing a host from
+ * the wrong strain's list does nothing (like the LinkedHashSet it replaces).
+ *
+ * Ordering matches the util.LinkedHashMap<Strain, util.LinkedHashSet<Integer>>
+ * this replaces (new strains and hosts go to the front of their lists), which
+ * keeps simulations reproducible.
+ *
+ * The number of hosts in each strain's list, and in the whole index, are kept up
+ * to date as hosts are added and removed, so the number of sick hosts never
+ * needs a scan (Verify does one, to check the counts when debugging).
+ *
+ * Each strain also has an infectious list, threaded through its list of hosts:
+ * the hosts in its list that are past incubation, in the same order. Hosts that
+ * are added after incubation (when they mutate into another strain, or when a
+ * save state is loaded) go straight to the front of it, and the others are
+ * moved into it by MarkInfectious when they finish incubating (World schedules
+ * this), so the infection loops never have to pass over incubating hosts. Hosts
+ * stay in the infectious list until they're removed from the index, so on the
+ * day they recover they're still in it.
+ *
+ * With Strain_Interned, the index also keeps a GenotypeTable of the strains in
+ * it, so mutations can find a strain that's already carrying a genotype.
+ */
+public class InfectionIndex {
+
+   public static final int NONE = -1;
+
+   public InfectionIndex(HostStore hosts, boolean interned) {
+      this.hosts = hosts;
+      int numHosts = hosts.numHosts;
+      next = new int[numHosts];
+      prev = new int[numHosts];
+      owners = new Strain[numHosts];
+      stamps = new int[numHosts];
+      infectiousNext = new int[numHosts];
+      infectiousPrev = new int[numHosts];
+      for (int i = 0; i < numHosts; i++) {
+         prev[i] = NOT_INDEXED;
+         infectiousPrev[i] = NOT_INDEXED;
+      }
+      nextStamp = 0;
+      firstStrain = null;
+      numStrains = 0;
+      totalHosts = 0;
+      genotypes = interned ? new GenotypeTable() : null;
+   }
+
+   //========== Strains ==========
+   public boolean Contains(Strain strain) {
+      return strain.indexed;
+   }
+
+   //Adds a strain (with no hosts) to the front of the index
+   public void AddStrain(Strain strain) {
+      RemoveStrain(strain);
+      strain.indexed = true;
+      strain.indexPrev = null;
+      strain.indexNext = firstStrain;
+      strain.indexFirstHost = NONE;
+      strain.indexFirstInfectious = NONE;
+      strain.indexSize = 0;
+      if (firstStrain != null) {
+         firstStrain.indexPrev = strain;
+      }
+      firstStrain = strain;
+      ++numStrains;
+      if (genotypes != null) {
+         genotypes.Put(strain);
+      }
+   }
+
+   //Removes a strain, along with any hosts that are still in its list
+   public void RemoveStrain(Strain strain) {
+      if (!strain.indexed) {
+         return;
+      }
+      while (strain.indexFirstHost != NONE) {
+         Remove(strain, strain.indexFirstHost);
+      }
+      if (strain.indexPrev != null) {
+         strain.indexPrev.indexNext = strain.indexNext;
+      } else {
+         firstStrain = strain.indexNext;
+      }
+      if (strain.indexNext != null) {
+         strain.indexNext.indexPrev = strain.indexPrev;
+      }
+      strain.indexed = false;
+      strain.indexPrev = null;
+      strain.indexNext = null;
+      --numStrains;
+      if (genotypes != null) {
+         genotypes.Remove(strain);
+      }
+   }
+
+   public Strain GetFirstStrain() {
+      return firstStrain;
+   }
+
+   public Strain GetNextStrain(Strain strain) {
+      return strain.indexNext;
+   }
+
+   public int GetNumStrains() {
+      return numStrains;
+   }
+
+   //The genotypes of the strains in the index (null unless strains are interned)
+   public GenotypeTable GetGenotypes() {
+      return genotypes;
+   }
+
+   //========== Hosts ==========
+   public boolean Contains(int host) {
+      return prev[host] != NOT_INDEXED;
+   }
+
+   //Adds a host to the front of a strain's list (moving it there if it's already in the index)
+   public void Add(Strain strain, int host) {
+      if (owners[host] != null) {
+         Remove(owners[host], host);
+      }
+      owners[host] = strain;
+      prev[host] = NONE;
+      next[host] = strain.indexFirstHost;
+      if (strain.indexFirstHost != NONE) {
+         prev[strain.indexFirstHost] = host;
+      }
+      strain.indexFirstHost = host;
+      //The newest host is in front, so if it's past incubation, it's in front of the infectious list too
+      stamps[host] = nextStamp++;
+      if (!hosts.IsIncubating(host, hosts.GetDate())) {
+         LinkInfectious(strain, host, NONE);
+      }
+      ++strain.indexSize;
+      ++totalHosts;
+   }
+
+   //Removes a host from a strain's list, if it's in that strain's list
+   public void Remove(Strain strain, int host) {
+      if (owners[host] != strain) {
+         return;
+      }
+      if (prev[host] != NONE) {
+         next[prev[host]] = next[host];
+      } else {
+         strain.indexFirstHost = next[host];
+      }
+      if (next[host] != NONE) {
+         prev[next[host]] = prev[host];
+      }
+      if (infectiousPrev[host] != NOT_INDEXED) {
+         UnlinkInfectious(strain, host);
+      }
+      prev[host] = NOT_INDEXED;
+      next[host] = NONE;
+      owners[host] = null;
+      --strain.indexSize;
+      --totalHosts;
+   }
+
+   public int GetFirstHost(Strain strain) {
+      return strain.indexFirstHost;
+   }
+
+   public int GetNextHost(int host) {
+      return next[host];
+   }
+
+   //Moves a host that has just finished incubating into its strain's infectious list (nothing happens if
+   //it's not in the index, or if it's already there). Only hosts that were added after this one are in
+   //front of it, which is usually just the few that have mutated into the strain since.
+   public void MarkInfectious(int host) {
+      Strain strain = owners[host];
+      if (strain == null || infectiousPrev[host] != NOT_INDEXED) {
+         return;
+      }
+      int previous = NONE;
+      for (int other = strain.indexFirstInfectious; other != NONE && stamps[other] - stamps[host] > 0; other = infectiousNext[other]) {
+         previous = other;
+      }
+      LinkInfectious(strain, host, previous);
+   }
+
+   public boolean IsMarkedInfectious(int host) {
+      return infectiousPrev[host] != NOT_INDEXED;
+   }
+
+   public int GetFirstInfectious(Strain strain) {
+      return strain.indexFirstInfectious;
+   }
+
+   public int GetNextInfectious(int host) {
+      return infectiousNext[host];
+   }
+
+   public int GetSize(Strain strain) {
+      return strain.indexSize;
+   }
+
+   //The number of hosts in the index (across all strains)
+   public long GetTotalHosts() {
+      return totalHosts;
+   }
+   //Links a host into a strain's infectious list after another host (or in front, if previous is NONE)
+   protected void LinkInfectious(Strain strain, int host, int previous) {
+      int following = previous == NONE ? strain.indexFirstInfectious : infectiousNext[previous];
+      infectiousPrev[host] = previous;
+      infectiousNext[host] = following;
+      if (previous == NONE) {
+         strain.indexFirstInfectious = host;
+      } else {
+         infectiousNext[previous] = host;
+      }
+      if (following != NONE) {
+         infectiousPrev[following] = host;
+      }
+   }
+
+   protected void UnlinkInfectious(Strain strain, int host) {
+      if (infectiousPrev[host] != NONE) {
+         infectiousNext[infectiousPrev[host]] = infectiousNext[host];
+      } else {
+         strain.indexFirstInfectious = infectiousNext[host];
+      }
+      if (infectiousNext[host] != NONE) {
+         infectiousPrev[infectiousNext[host]] = infectiousPrev[host];
+      }
+      infectiousPrev[host] = NOT_INDEXED;
+      infectiousNext[host] = NONE;
+   }
+
+   //Walks every list and checks the links, owners and counts against it (slow, only for debugging)
+   public void Verify() {
+      int strains = 0;
+      long hosts = 0;
+      for (Strain strain = firstStrain; strain != null; strain = strain.indexNext) {
+         if (!strain.indexed) {
+            throw new RuntimeException("Strain " + strain.stats.id + " is in the index, but it's not marked as indexed");
+         }
+         int size = 0;
+         int last = NONE;
+         for (int host = strain.indexFirstHost; host != NONE; host = next[host]) {
+            if (owners[host] != strain) {
+               throw new RuntimeException("Host " + host + " is in the list of strain " + strain.stats.id + ", but it's owned by " + (owners[host] == null ? "no strain" : "strain " + owners[host].stats.id));
+            }
+            if (prev[host] != last) {
+               throw new RuntimeException("Host " + host + " in the list of strain " + strain.stats.id + " isn't linked back to the host before it");
+            }
+            last = host;
+            ++size;
+         }
+         //The infectious list has to be the hosts in the list that are marked infectious, in the same order
+         int infectious = strain.indexFirstInfectious;
+         last = NONE;
+         for (int host = strain.indexFirstHost; host != NONE; host = next[host]) {
+            if (infectiousPrev[host] == NOT_INDEXED) {
+               continue;
+            }
+            if (host != infectious || infectiousPrev[host] != last) {
+               throw new RuntimeException("The infectious list of strain " + strain.stats.id + " is out of order at host " + host);
+            }
+            last = host;
+            infectious = infectiousNext[host];
+         }
+         if (infectious != NONE) {
+            throw new RuntimeException("Host " + infectious + " is in the infectious list of strain " + strain.stats.id + ", but not in its list");
+         }
+         if (size != strain.indexSize) {
+            throw new RuntimeException("Strain " + strain.stats.id + " has " + size + " hosts, but its count is " + strain.indexSize);
+         }
+         ++strains;
+         hosts += size;
+      }
+      if (strains != numStrains) {
+         throw new RuntimeException("The index has " + strains + " strains, but its count is " + numStrains);
+      }
+      if (hosts != totalHosts) {
+         throw new RuntimeException("The index has " + hosts + " hosts, but its count is " + totalHosts);
+      }
+      //Hosts that aren't in any list shouldn't think they are
+      long owned = 0;
+      for (int host = 0; host < owners.length; host++) {
+         if (owners[host] != null) {
+            ++owned;
+         }
+      }
+      if (owned != totalHosts) {
+         throw new RuntimeException(owned + " hosts have an owner in the index, but it has " + totalHosts + " hosts");
+      }
+   }
+   protected static final int NOT_INDEXED = -2;
+   protected HostStore hosts;
+   protected int[] next;
+   protected int[] prev;
+   //The strain whose list each host is in (null if it isn't in the index)
+   protected Strain[] owners;
+   //The order hosts were added in (newer hosts are in front), compared by difference so it can wrap around
+   protected int[] stamps;
+   protected int nextStamp;
+   //Links for the infectious lists (NOT_INDEXED if a host isn't in one)
+   protected int[] infectiousNext;
+   protected int[] infectiousPrev;
+   protected Strain firstStrain;
+   protected int numStrains;
+   protected long totalHosts;
+   protected GenotypeTable genotypes;
+}
@@ -0,0 +1,37 @@
+package fergusonmodel;
+
+import stats.SimulationInfo;
+
+/*
+ * The algorithm-specific parts of the daily update, composed once from the
+ * SimulationInfo (in Main.Setup). None of the algorithms change during a run,
+ * so the hot loops call through these instead of switching on the algorithms
+ * for every host - each call site only ever sees one implementation.
+ */
+public class Kernel {
+
+   public static Kernel Create(SimulationInfo simulationInfo) {
+      return new Kernel(LocalExposure.Create(simulationInfo), Mutation.Create(simulationInfo), Connectivity.Create(simulationInfo));
+   }
+
+   public Kernel(LocalExposure localExposure, Mutation mutation, Connectivity connectivity) {
+      this.localExposure = localExposure;
+      this.mutation = mutation;
+      this.connectivity = connectivity;
+   }
+
+   public LocalExposure GetLocalExposure() {
+      return localExposure;
+   }
+
+   public Mutation GetMutation() {
+      return mutation;
+   }
+
+   public Connectivity GetConnectivity() {
+      return connectivity;
+   }
+   protected final LocalExposure localExposure;
+   protected final Mutation mutation;
+   protected final Connectivity connectivity;
+}
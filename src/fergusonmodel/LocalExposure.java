@@ -0,0 +1,150 @@
+package fergusonmodel;
+
+import stats.SimulationInfo;
+import util.IntList;
+import util.RandomSource;
+
+/*
+ * Exposures in the local neighborhood of an infected host
+ * (SimulationInfo.infectionAlgorithm). The algorithm is fixed for the whole run,
+ * so one of these is chosen in Main.Setup and World.ExposeLocal always calls
+ * the same one.
+ */
+public abstract class LocalExposure {
+
+   public static LocalExposure Create(SimulationInfo simulationInfo) {
+      switch (simulationInfo.infectionAlgorithm) {
+         case Infection_Exact:
+            return new ExactExposure();
+         case Infection_ExactGeometric:
+            return new ExactGeometricExposure();
+         case Infection_Approximate1:
+            return new PoissonExposure();
+         case Infection_Approximate2:
+            return new RoundedExposure();
+         case Infection_Approximate3:
+            return new RoundedDistinctExposure();
+         default:
+            throw new RuntimeException("Invalid infection algorithm: " + simulationInfo.infectionAlgorithm);
+      }
+   }
+
+   //Adds the exposed neighbors to the list. The host's neighbors are neighborList[neighborIndex]
+   //through neighborList[neighborIndex + numNeighbors - 1], relative to firstHost (the first host
+   //in its patch), and there's at least 1 of them.
+   public abstract void Expose(int firstHost, int[] neighborList, int neighborIndex, int numNeighbors, int deme, int dayOfYear, RandomSource random, IntList exposures);
+
+   //Infection_Exact - query each neighbor to see if they should be exposed
+   protected static class ExactExposure extends LocalExposure {
+
+      @Override
+      public void Expose(int firstHost, int[] neighborList, int neighborIndex, int numNeighbors, int deme, int dayOfYear, RandomSource random, IntList exposures) {
+         double probability = Main.LOCAL_INFECTION_PROBABILITY;
+         if (deme != Connectivity.TROPICS) {
+            //Take seasonality into account if this host isn't in the tropics
+            probability = Main.EXPOSURE_LOCAL[dayOfYear];
+         }
+         //Try to expose all the neighbors
+         for (int i = 0; i < numNeighbors; i++) {
+            int neighborID = neighborList[neighborIndex + i];
+            if (random.nextDouble() < probability) {
+               exposures.Add(firstHost + neighborID);
+            }
+         }
+      }
+   }
+
+   //Infection_ExactGeometric - same as above, but skip straight to the next neighbor that's exposed
+   protected static class ExactGeometricExposure extends LocalExposure {
+
+      @Override
+      public void Expose(int firstHost, int[] neighborList, int neighborIndex, int numNeighbors, int deme, int dayOfYear, RandomSource random, IntList exposures) {
+         double gapScale = Main.LOCAL_INFECTION_GAP_SCALE;
+         if (deme != Connectivity.TROPICS) {
+            //Take seasonality into account if this host isn't in the tropics
+            if (Main.EXPOSURE_LOCAL[dayOfYear] <= 0) {
+               return;
+            }
+            gapScale = Main.EXPOSURE_LOCAL_GAP_SCALE[dayOfYear];
+         } else if (Main.LOCAL_INFECTION_PROBABILITY <= 0) {
+            return;
+         }
+         int exposed = -1;
+         while (true) {
+            long gap = Main.DrawGeometric(gapScale, random.nextDouble());
+            if (gap >= numNeighbors - 1 - exposed) {
+               return;
+            }
+            exposed += 1 + (int) gap;
+            exposures.Add(firstHost + neighborList[neighborIndex + exposed]);
+         }
+      }
+   }
+
+   //Infection_Approximate1 - as an optimization, just draw the number of neighbors to expose from a
+   //poisson, then sample with replacement (fast, but can sample the same neighbor many times)
+   protected static class PoissonExposure extends LocalExposure {
+
+      @Override
+      public void Expose(int firstHost, int[] neighborList, int neighborIndex, int numNeighbors, int deme, int dayOfYear, RandomSource random, IntList exposures) {
+         int numLocal = DrawNumLocal(numNeighbors, dayOfYear, random);
+         ExposeWithReplacement(firstHost, neighborList, neighborIndex, numNeighbors, numLocal, random, exposures);
+      }
+
+      protected int DrawNumLocal(int numNeighbors, int dayOfYear, RandomSource random) {
+         return Main.POISSON_LOCAL_SAMPLERS[dayOfYear].Draw(random.nextDouble());
+      }
+
+      protected static void ExposeWithReplacement(int firstHost, int[] neighborList, int neighborIndex, int numNeighbors, int numLocal, RandomSource random, IntList exposures) {
+         for (int i = 0; i < numLocal; i++) {
+            int neighborID = neighborList[neighborIndex + random.nextInt(numNeighbors)];
+            exposures.Add(firstHost + neighborID);
+         }
+      }
+   }
+
+   //Infection_Approximate2 - the expected number of exposures, randomly rounded up or down
+   protected static class RoundedExposure extends PoissonExposure {
+
+      @Override
+      protected int DrawNumLocal(int numNeighbors, int dayOfYear, RandomSource random) {
+         //This is a copy of Anuroop's implementation
+         double temp = Main.INFECTION_LOCAL[dayOfYear] * numNeighbors;
+         if (random.nextDouble() < temp - (int) temp) {
+            return (int) temp + 1;
+         } else {
+            return (int) temp;
+         }
+      }
+   }
+
+   //Infection_Approximate3 - same as above, but sampling without replacement
+   protected static class RoundedDistinctExposure extends RoundedExposure {
+
+      @Override
+      public void Expose(int firstHost, int[] neighborList, int neighborIndex, int numNeighbors, int deme, int dayOfYear, RandomSource random, IntList exposures) {
+         int numLocal = DrawNumLocal(numNeighbors, dayOfYear, random);
+         if (numLocal <= 1) {
+            //With just 1 (or 0) neighbor to expose, revert to sampling with replacement
+            //It's more efficient, and the results are the exact same
+            ExposeWithReplacement(firstHost, neighborList, neighborIndex, numNeighbors, numLocal, random, exposures);
+            return;
+         }
+         //A partial Fisher-Yates over this host's neighbors, done in place at the end of the exposure list
+         int start = exposures.GetSize();
+         for (int i = 0; i < numNeighbors; i++) {
+            exposures.Add(firstHost + neighborList[neighborIndex + i]);
+         }
+         for (int i = 0; i < numLocal; i++) {
+            int pick = start + i + random.nextInt(numNeighbors - i);
+            int neighbor = exposures.Get(pick);
+            //Shift the skipped neighbors up instead of swapping, so the rest stay in order (same draws as the old ArrayList.remove)
+            for (int j = pick; j > start + i; j--) {
+               exposures.Set(j, exposures.Get(j - 1));
+            }
+            exposures.Set(start + i, neighbor);
+         }
+         exposures.Truncate(start + numLocal);
+      }
+   }
+}
@@ -2,31 +2,50 @@ package fergusonmodel;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.util.Arrays;
 import java.util.Calendar;
 import stats.*;
-import util.LinkedHashSet;
+import util.CounterRandom;
 import util.MersenneTwister;
 import util.PatchGenerator;
+import util.RandomSource;
+import util.Xoshiro256;
 
 public class Main {
 
    //Simulator version
-   public static final short VERSION_MAJOR = 1;
-   public static final short VERSION_MINOR = 1;
+   public static final short VERSION_MAJOR = 6;
+   public static final short VERSION_MINOR = 0;
    public static final int VERSION = (VERSION_MAJOR << 16) | VERSION_MINOR;
    //The random number generator
-   public static MersenneTwister RANDOM;
+   public static RandomSource RANDOM;
    //Simulation parameters are loaded at runtime
    public static SimulationInfo simulationInfo;
+   //The algorithm-specific parts of the daily update, chosen once the simulation info is assigned
+   public static Kernel KERNEL;
    //Intrinsic parameters
    public static final double AVERAGE_NEIGHBORS = 12.554;
+   //Upper limit on the size of the waning immunity table
+   public static final int MAX_WANING_DAYS = 1 << 20;
    public static double LOCAL_INFECTION_PROBABILITY;
    //Precalculated tables
    public static double[][] POISSON_GLOBAL;
    public static double[][] POISSON_PATCH;
    public static double[][] POISSON_LOCAL;
    public static double[] BINOMIAL_STRAIN;
+   public static Sampler[] POISSON_GLOBAL_SAMPLERS;
+   public static Sampler[] POISSON_PATCH_SAMPLERS;
+   public static Sampler[] POISSON_LOCAL_SAMPLERS;
+   public static Sampler BINOMIAL_STRAIN_SAMPLER;
+   public static Sampler BINOMIAL_STRAIN_MUTATED_SAMPLER;
+   public static double MUTATION_GAP_SCALE;
    public static double[] INFECTION_LOCAL;
+   public static double[] EXPOSURE_LOCAL;
+   public static double[] EXPOSURE_LOCAL_GAP_SCALE;
+   public static double LOCAL_INFECTION_GAP_SCALE;
+   public static double[] SUSCEPTIBILITY_DISTANCE;
+   public static double[] SUSCEPTIBILITY_WANING;
+   public static boolean SUSCEPTIBILITY_WANING_SATURATED;
    //Record keeping
    public static String statsFile;
 
@@ -39,6 +58,9 @@ public class Main {
          System.out.println("  java -jar FergusonModel.jar -new <base64 settings string>");
          System.out.println("  java -jar FergusonModel.jar -resume <filename> <settings>");
          System.out.println("  java -jar FergusonModel.jar -patch <random seed> <num hosts>");
+         System.out.println("Options:");
+         System.out.println("  -Dthreads=<n>  worker threads for Engine_Parallel (default: number of processors)");
+         System.out.println("  -DstatsBuffers=<n>  days of stats that can wait to be written in the background (default: 4, or 0 with a single processor)");
          return;
       }
       if (args[0].equalsIgnoreCase("-new")) {
@@ -99,11 +121,26 @@ public class Main {
          //Load the saved state
          DataInput in = statsReader.GetSaveStateInput();
          world.LoadState(in);
-         RANDOM.LoadState(in);
+         //The saved RNG state only makes sense to the generator that saved it
+         if (statsReader.simulationInfo.randomAlgorithm != simulationInfo.randomAlgorithm) {
+            throw new Exception("Can't resume the simulation with a different random algorithm: " + statsReader.simulationInfo.randomAlgorithm);
+         }
+         //With Random_Counter, there's no RNG state to load (it only depends on the seed and the date)
+         boolean randomSaved = (simulationInfo.randomAlgorithm != SimulationInfo.Algorithm.Random_Counter);
+         if (randomSaved) {
+            RANDOM.LoadState(in);
+         }
          StrainStats.nextStrainID = in.readInt();
+         //The per-patch RNG streams are only saved by the parallel engine
+         if (randomSaved && statsReader.simulationInfo.engineAlgorithm == SimulationInfo.Algorithm.Engine_Parallel && world.parallelEngine != null) {
+            world.parallelEngine.LoadState(in);
+         }
          //Reinitialize the RNG if the new seed is different than the previous seed
          if (statsReader.simulationInfo.randomSeed != simulationInfo.randomSeed) {
-            RANDOM = new MersenneTwister(simulationInfo.randomSeed);
+            RANDOM = CreateRandom(simulationInfo.randomSeed);
+            if (world.parallelEngine != null) {
+               world.parallelEngine.randoms = ParallelEngine.CreateRandoms(simulationInfo.randomSeed, world.patches.length);
+            }
          }
          runtimeInfo.SetInitialState(statsReader.runtimeInfo.finalState);
          statsReader.Close();
@@ -115,13 +152,17 @@ public class Main {
          //Make a strain
          Strain strain = new Strain(world.date, Strain.DecodeGenotype("AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA"));
          //Infect someone
-         Host indexCase = world.patches[RANDOM.nextInt(world.patches.length)].hosts[RANDOM.nextInt(world.patches[0].hosts.length)];
-         indexCase.Infect(world.GetDate(), strain);
+         RandomSource random = world.GetRandom();
+         world.Seek(random, World.NO_STREAM, World.PURPOSE_SETUP, 0);
+         int indexPatch = random.nextInt(world.patches.length);
+         int indexCase = world.hosts.GetHost(indexPatch, random.nextInt(world.hosts.hostsPerPatch));
+         world.hosts.Infect(indexCase, world.GetDate(), strain);
          //Housekeeping for this infection
-         world.knownStrains.Put(strain, new LinkedHashSet<Host>());
-         world.knownStrains.Get(strain).Add(indexCase);
-         world.patches[indexCase.patchID].stats.exposed++;
-         world.patches[indexCase.patchID].stats.naive--;
+         world.knownStrains.AddStrain(strain);
+         world.knownStrains.Add(strain, indexCase);
+         world.ScheduleTransitions(indexCase);
+         world.patches[indexPatch].stats.exposed++;
+         world.patches[indexPatch].stats.naive--;
       }
       //Create and initialize the stats file
       statsFile = "stats-" + System.currentTimeMillis() + ".bin";
@@ -137,7 +178,7 @@ public class Main {
       int lastWorldDate = world.date;
       while (world.date - worldStartDate < simulationInfo.numDays - 1) {
          //Sanity check
-         if (simulationInfo.minCarriers > 0 && world.knownStrains.GetSize() == 0) {
+         if (simulationInfo.minCarriers > 0 && world.knownStrains.GetNumStrains() == 0) {
             throw new Exception("The virus has gone extinct! Date: " + world.GetDateString() + " (" + world.GetDate() + ")");
          }
          //Run this day
@@ -158,12 +199,25 @@ public class Main {
          Print("Saving state...");
          DataOutput out = stats.GetSaveStateOutput();
          world.SaveState(out);
-         RANDOM.SaveState(out);
+         if (simulationInfo.randomAlgorithm != SimulationInfo.Algorithm.Random_Counter) {
+            RANDOM.SaveState(out);
+         }
          out.writeInt(StrainStats.nextStrainID);
+         if (world.parallelEngine != null) {
+            world.parallelEngine.SaveState(out);
+         }
          Print("Done");
       }
       //Create a "hash" to uniquely identify this trajectory
-      long random = RANDOM.nextLong();
+      RandomSource generator = world.GetRandom();
+      if (simulationInfo.randomAlgorithm == SimulationInfo.Algorithm.Random_Counter) {
+         //Counter streams only depend on the seed and the date, so pick the stream with a digest of the final state
+         long digest = world.GetStateDigest();
+         world.Seek(generator, (int) digest, World.PURPOSE_HASH, (int) (digest >>> 32));
+      } else {
+         world.Seek(generator, World.NO_STREAM, World.PURPOSE_HASH, 0);
+      }
+      long random = generator.nextLong();
       long date = ((long) world.GetDate()) << 32;
       long sick = world.GetTotalSick();
       long finalStateHash = random ^ (date | sick);
@@ -182,6 +236,7 @@ public class Main {
          case Infection_Approximate2:
          case Infection_Approximate3:
          case Infection_Exact:
+         case Infection_ExactGeometric:
             break;
          default:
             throw new Exception("Invalid infection algorithm: " + simulationInfo.infectionAlgorithm);
@@ -190,6 +245,7 @@ public class Main {
          case Mutation_Approximate:
          case Mutation_Exact:
          case Mutation_None:
+         case Mutation_Geometric:
             break;
          default:
             throw new Exception("Invalid mutation algorithm: " + simulationInfo.mutationAlgorithm);
@@ -201,10 +257,14 @@ public class Main {
             }
             break;
          case Connectivity_Cylindrical:
+         case Connectivity_CylindricalDirect:
             if (simulationInfo.numPatches % 4 != 0) {
-               throw new Exception("With Connectivity_Cylindrical, numPatches must be a multiple of 4: " + simulationInfo.numPatches);
+               throw new Exception("With " + simulationInfo.connectivityAlgorithm + ", numPatches must be a multiple of 4: " + simulationInfo.numPatches);
             }
             break;
+         case Connectivity_File:
+            //The file is checked when it's loaded (below, when the kernel is created)
+            break;
          case Connectivity_Tropics:
             if (simulationInfo.numPatches % 10 != 0) {
                throw new Exception("With Connectivity_Tropics, numPatches must be a multiple of 10: " + simulationInfo.numPatches);
@@ -213,6 +273,45 @@ public class Main {
          default:
             throw new Exception("Invalid connectivity algorithm: " + simulationInfo.connectivityAlgorithm);
       }
+      switch (simulationInfo.engineAlgorithm) {
+         case Engine_Sequential:
+         case Engine_Parallel:
+            break;
+         default:
+            throw new Exception("Invalid engine algorithm: " + simulationInfo.engineAlgorithm);
+      }
+      switch (simulationInfo.strainAlgorithm) {
+         case Strain_Unique:
+         case Strain_Interned:
+            break;
+         default:
+            throw new Exception("Invalid strain algorithm: " + simulationInfo.strainAlgorithm);
+      }
+      //Make sure the generator matches its reference implementation before anything is drawn from it
+      switch (simulationInfo.randomAlgorithm) {
+         case Random_MersenneTwister:
+            break;
+         case Random_Xoshiro:
+            if (!Xoshiro256.CheckTestVectors()) {
+               throw new Exception("Xoshiro256 doesn't match the reference test vectors");
+            }
+            break;
+         case Random_Counter:
+            if (!CounterRandom.CheckTestVectors()) {
+               throw new Exception("CounterRandom doesn't match the Random123 known answer tests");
+            }
+            break;
+         default:
+            throw new Exception("Invalid random algorithm: " + simulationInfo.randomAlgorithm);
+      }
+      switch (simulationInfo.samplerAlgorithm) {
+         case Sampler_Linear:
+         case Sampler_Guide:
+         case Sampler_Alias:
+            break;
+         default:
+            throw new Exception("Invalid sampler algorithm: " + simulationInfo.samplerAlgorithm);
+      }
       //Make sure the neighborhood radius is set to 4 (there are hardcoded values that depend on this assumption)
       if (simulationInfo.neighborhoodRadius != 4.0) {
          throw new Exception("neighborhoodRadius must be set to 4, but it is currently set to [" + simulationInfo.neighborhoodRadius + "].");
@@ -276,15 +375,29 @@ public class Main {
          simulationInfo.randomSeed = System.currentTimeMillis();
       }
       //Initialize the RNG
-      RANDOM = new MersenneTwister(simulationInfo.randomSeed);
+      RANDOM = CreateRandom(simulationInfo.randomSeed);
       //Calculate the infection probability
       LOCAL_INFECTION_PROBABILITY = simulationInfo.R0_local / AVERAGE_NEIGHBORS / 4.0; //R0 * 1/num_neighbors * 1/infection_duration
       //Reset the Strain ID counter
       StrainStats.nextStrainID = 0;
+      //Choose the algorithms used in the daily update
+      KERNEL = Kernel.Create(simulationInfo);
       //Print the current set of parameters just to be thorough
       simulationInfo.Print();
    }
 
+   //The generator for the daily update (ParallelEngine.CreateRandoms makes the per-patch streams)
+   public static RandomSource CreateRandom(long seed) {
+      switch (simulationInfo.randomAlgorithm) {
+         case Random_Xoshiro:
+            return new Xoshiro256(seed);
+         case Random_Counter:
+            return new CounterRandom(seed);
+         default:
+            return new MersenneTwister(seed);
+      }
+   }
+
    public static int DrawFromDistribution(double[] cdf, double rand) {
       for (int i = 0; i < cdf.length; i++) {
          if (cdf[i] >= rand) {
@@ -297,6 +410,30 @@ public class Main {
       return cdf.length;
    }
 
+   //The number of failures before the first success, given 1 / ln(1 - p) for a success probability p
+   public static long DrawGeometric(double gapScale, double rand) {
+      //Casting saturates, so a huge gap is just Long.MAX_VALUE
+      return (long) Math.floor(Math.log(1 - rand) * gapScale);
+   }
+
+   //Poisson CDFs for the number of exposures per day, for each day of the year (with seasonality)
+   public static double[][] GetSeasonalPoisson(double R0) {
+      double infectionDays = 4;
+      double lambda = R0 / infectionDays;
+      double[][] poisson = new double[365][20];
+      for (int day = 0; day < 365; day++) {
+         //Using cosine so the peak is January 1
+         double seasonality = lambda * (1 + simulationInfo.seasonalityMultiplier * Math.cos((double) day / 365.0 * Math.PI * 2.0));
+         poisson[day][0] = Math.pow(Math.E, -seasonality);
+         double factorial = 1;
+         for (int k = 1; k < poisson[day].length; k++) {
+            factorial *= k;
+            poisson[day][k] = poisson[day][k - 1] + Math.pow(seasonality, k) * Math.pow(Math.E, -seasonality) / factorial;
+         }
+      }
+      return poisson;
+   }
+
    public static void InitializeProbabilities() {
       //Poisson probability for number of hosts to infect
       double infectionDays = 4;
@@ -331,6 +468,22 @@ public class Main {
          double d = Choose(n, k) * Math.pow(p, k) * Math.pow(1 - p, n - k);
          BINOMIAL_STRAIN[k] = Math.min(1, previous + d);
       }
+      //Samplers for the distributions above
+      POISSON_GLOBAL_SAMPLERS = Sampler.Create(POISSON_GLOBAL, simulationInfo.samplerAlgorithm);
+      POISSON_PATCH_SAMPLERS = Sampler.Create(POISSON_PATCH, simulationInfo.samplerAlgorithm);
+      POISSON_LOCAL_SAMPLERS = Sampler.Create(POISSON_LOCAL, simulationInfo.samplerAlgorithm);
+      BINOMIAL_STRAIN_SAMPLER = Sampler.Create(BINOMIAL_STRAIN, simulationInfo.samplerAlgorithm);
+      //The same binomial, given that there's at least 1 mutation (all zeros if mutations are impossible)
+      //Only used by algorithm Mutation_Geometric
+      double[] mutated = new double[BINOMIAL_STRAIN.length];
+      double scale = BINOMIAL_STRAIN[0] < 1 ? 1 / (1 - BINOMIAL_STRAIN[0]) : 0;
+      for (int k = 1; k < mutated.length; k++) {
+         mutated[k] = Math.min(1, (BINOMIAL_STRAIN[k] - BINOMIAL_STRAIN[0]) * scale);
+      }
+      BINOMIAL_STRAIN_MUTATED_SAMPLER = Sampler.Create(mutated, simulationInfo.samplerAlgorithm);
+      //Scale for drawing the number of hosts that don't mutate before the next one that does (1 / ln(P(no mutations)))
+      //Only used by algorithm Mutation_Geometric
+      MUTATION_GAP_SCALE = 1 / Math.log(BINOMIAL_STRAIN[0]);
       //Probability of infecting people in a neighborhood, mirroring Anuroop's implementation
       //Using cosine so the peak is January 1
       //Only used by algorithms Infection_Approximate2 and Infection_Approximate3
@@ -339,6 +492,39 @@ public class Main {
       for (int day = 0; day < 365; day++) {
          INFECTION_LOCAL[day] = 1 - Math.exp(-(1 + simulationInfo.seasonalityMultiplier * Math.cos((double) day / 365.0 * Math.PI * 2.0)) * beta);
       }
+      //Probability of exposing each neighbor, with seasonality (outside of the tropics)
+      //Using cosine so the peak is January 1
+      //Only used by algorithm Infection_Exact
+      EXPOSURE_LOCAL = new double[365];
+      for (int day = 0; day < 365; day++) {
+         EXPOSURE_LOCAL[day] = LOCAL_INFECTION_PROBABILITY * (1 + simulationInfo.seasonalityMultiplier * Math.cos((double) day / 365.0 * Math.PI * 2.0));
+      }
+      //Scales for drawing the number of neighbors that aren't exposed before the next one that is (see DrawGeometric)
+      //Only used by algorithm Infection_ExactGeometric
+      EXPOSURE_LOCAL_GAP_SCALE = new double[365];
+      for (int day = 0; day < 365; day++) {
+         EXPOSURE_LOCAL_GAP_SCALE[day] = 1 / Math.log1p(-Math.min(1, EXPOSURE_LOCAL[day]));
+      }
+      LOCAL_INFECTION_GAP_SCALE = 1 / Math.log1p(-Math.min(1, LOCAL_INFECTION_PROBABILITY));
+      //Susceptibility (1 - cross protection), indexed by immunity distance
+      SUSCEPTIBILITY_DISTANCE = new double[simulationInfo.numEpitopes * simulationInfo.codonsPerEpitope + 1];
+      for (int d = 0; d < SUSCEPTIBILITY_DISTANCE.length; d++) {
+         SUSCEPTIBILITY_DISTANCE[d] = 1 - World.GetCrossProtection(d);
+      }
+      //Susceptibility after waning immunity, indexed by days since the last infection
+      //The table ends once it reaches exactly 1, since it can only stay there (unless tau is so large that the table would be huge)
+      double[] waning = new double[365];
+      int numDays = 0;
+      SUSCEPTIBILITY_WANING_SATURATED = false;
+      while (!SUSCEPTIBILITY_WANING_SATURATED && numDays < MAX_WANING_DAYS) {
+         if (numDays == waning.length) {
+            waning = Arrays.copyOf(waning, waning.length * 2);
+         }
+         waning[numDays] = World.GetWaningSusceptibility(numDays);
+         SUSCEPTIBILITY_WANING_SATURATED = (waning[numDays] == 1);
+         ++numDays;
+      }
+      SUSCEPTIBILITY_WANING = Arrays.copyOf(waning, numDays);
    }
 
    private static double Choose(int n, int k) {
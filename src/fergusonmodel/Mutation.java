@@ -0,0 +1,97 @@
+package fergusonmodel;
+
+import stats.SimulationInfo;
+import util.RandomSource;
+
+/*
+ * How many mutations happen when the virus replicates
+ * (SimulationInfo.mutationAlgorithm). The algorithm is fixed for the whole run,
+ * so one of these is chosen in Main.Setup.
+ *
+ * The mutation loops walk the infected hosts, passing over DrawGap hosts before
+ * each one that's replicated (Strain.Replicate), which then draws the number of
+ * mutations with DrawNumMutations.
+ */
+public abstract class Mutation {
+
+   public static Mutation Create(SimulationInfo simulationInfo) {
+      switch (simulationInfo.mutationAlgorithm) {
+         case Mutation_Approximate:
+            return new ApproximateMutation(simulationInfo);
+         case Mutation_Exact:
+            return new ExactMutation();
+         case Mutation_None:
+            return new NoMutation();
+         case Mutation_Geometric:
+            return new GeometricMutation();
+         default:
+            throw new RuntimeException("Invalid mutation algorithm: " + simulationInfo.mutationAlgorithm);
+      }
+   }
+
+   //The number of hosts to pass over before the next one that's replicated
+   public long DrawGap(RandomSource random) {
+      //By default, every host is replicated
+      return 0;
+   }
+
+   //The number of mutations in a host that's replicated
+   public abstract int DrawNumMutations(RandomSource random);
+
+   //Mutation_Approximate - at most 1 mutation
+   protected static class ApproximateMutation extends Mutation {
+
+      public ApproximateMutation(SimulationInfo simulationInfo) {
+         probability = simulationInfo.mutationProbability * simulationInfo.numEpitopes * simulationInfo.codonsPerEpitope * 3;
+      }
+
+      @Override
+      public int DrawNumMutations(RandomSource random) {
+         return random.nextDouble() < probability ? 1 : 0;
+      }
+      protected double probability;
+   }
+
+   //Mutation_Exact - draw the number of mutations from a binomial
+   protected static class ExactMutation extends Mutation {
+
+      @Override
+      public int DrawNumMutations(RandomSource random) {
+         return Main.BINOMIAL_STRAIN_SAMPLER.Draw(random.nextDouble());
+      }
+   }
+
+   //Mutation_None - nothing is ever replicated
+   protected static class NoMutation extends Mutation {
+
+      @Override
+      public long DrawGap(RandomSource random) {
+         return Long.MAX_VALUE;
+      }
+
+      @Override
+      public int DrawNumMutations(RandomSource random) {
+         return 0;
+      }
+   }
+
+   //Mutation_Geometric - same distribution as Mutation_Exact, but the hosts that won't mutate are
+   //skipped over with a single draw
+   protected static class GeometricMutation extends Mutation {
+
+      @Override
+      public long DrawGap(RandomSource random) {
+         if (Main.BINOMIAL_STRAIN[0] >= 1) {
+            //Mutations are impossible
+            return Long.MAX_VALUE;
+         }
+         return Main.DrawGeometric(Main.MUTATION_GAP_SCALE, random.nextDouble());
+      }
+
+      @Override
+      public int DrawNumMutations(RandomSource random) {
+         //Only the hosts picked by DrawGap are replicated, so there's at least 1 mutation
+         return Math.max(1, Main.BINOMIAL_STRAIN_MUTATED_SAMPLER.Draw(random.nextDouble()));
+      }
+   }
+}
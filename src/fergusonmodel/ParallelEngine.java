@@ -0,0 +1,443 @@
+package fergusonmodel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import stats.SimulationInfo;
+import stats.StrainStats;
+import util.CounterRandom;
+import util.IntList;
+import util.MersenneTwister;
+import util.RandomSource;
+import util.Threads;
+import util.Xoshiro256;
+
+/*
+ * Updates the world one day at a time with the patches processed in parallel
+ * (Engine_Parallel). Each patch draws from its own MersenneTwister stream (or
+ * with Random_Xoshiro, its own jump of a Xoshiro256 stream, and with
+ * Random_Counter, its own CounterRandom, keyed the same way as in World), and
+ * every step that touches shared state (strain IDs, the infection index,
+ * strain incidence) is applied sequentially in patch order, so a trajectory
+ * depends only on the random seed and never on the number of threads.
+ *
+ * The day is split into the same phases as World.UpdateSequential:
+ *  - birthdays: patches reset their own hosts; the minCarriers quota is
+ *    handed out to sick hosts in patch order
+ *  - mutation: each patch replicates the virus in its own sick hosts, and the
+ *    new strains are given IDs in patch order
+ *  - infection: local and patch exposures are resolved by the infected host's
+ *    patch; global exposures are queued and resolved by the destination patch
+ *    once every patch has finished spreading
+ * Trajectories are not the same as Engine_Sequential, since the random
+ * numbers are drawn from different streams.
+ *
+ * While a phase runs on the pool, the strain registry (HostStore) and the
+ * genotype table are shared by every patch and are only read: new strains are
+ * registered, and the genotype table updated, between phases on the thread
+ * running Update (HostStore throws if a phase tries to register a strain).
+ */
+public class ParallelEngine {
+
+   public ParallelEngine(World world) {
+      this.world = world;
+      int numPatches = world.patches.length;
+      pool = new ForkJoinPool(Threads.GetCount());
+      Main.Print("Parallel engine: %d threads", pool.getParallelism());
+      randoms = CreateRandoms(Main.simulationInfo.randomSeed, numPatches);
+      lastRecoveredHosts = new IntList();
+      extinctStrains = new ArrayList<>();
+      dueSick = new IntList[numPatches];
+      sick = new IntList[numPatches];
+      mutatedHosts = new IntList[numPatches];
+      mutatedStrains = CreateStrainLists(numPatches);
+      sites = new int[numPatches][];
+      exposures = new IntList[numPatches];
+      outboxes = new Outbox[numPatches][numPatches];
+      outboxDestinations = new IntList[numPatches];
+      infectedHosts = new IntList[numPatches];
+      oldStrains = CreateStrainLists(numPatches);
+      newStrains = CreateStrainLists(numPatches);
+      for (int i = 0; i < numPatches; i++) {
+         dueSick[i] = new IntList();
+         sick[i] = new IntList();
+         mutatedHosts[i] = new IntList();
+         sites[i] = Strain.NewSites();
+         exposures[i] = new IntList();
+         outboxDestinations[i] = new IntList();
+         infectedHosts[i] = new IntList();
+      }
+   }
+
+   //One empty list of strains per patch
+   @SuppressWarnings({"unchecked"})
+   protected static ArrayList<Strain>[] CreateStrainLists(int numPatches) {
+      ArrayList<Strain>[] lists = (ArrayList<Strain>[]) new ArrayList<?>[numPatches];
+      for (int i = 0; i < numPatches; i++) {
+         lists[i] = new ArrayList<>();
+      }
+      return lists;
+   }
+
+   //One independent stream per patch, derived from the simulation seed
+   public static RandomSource[] CreateRandoms(long seed, int numPatches) {
+      RandomSource[] randoms = new RandomSource[numPatches];
+      //Skip the stream Main.RANDOM draws from, then give each patch the next 2^128 numbers
+      Xoshiro256 streams = new Xoshiro256(seed);
+      streams.Jump();
+      for (int i = 0; i < numPatches; i++) {
+         switch (Main.simulationInfo.randomAlgorithm) {
+            case Random_Xoshiro:
+               randoms[i] = streams.Split();
+               break;
+            case Random_Counter:
+               //The streams are already keyed by host, so every patch can share the seed
+               randoms[i] = new CounterRandom(seed);
+               break;
+            default:
+               randoms[i] = new MersenneTwister(new int[]{(int) seed, (int) (seed >>> 32), i});
+         }
+      }
+      return randoms;
+   }
+
+   public void Update() {
+      HostStore hosts = world.hosts;
+      InfectionIndex knownStrains = world.knownStrains;
+      ++world.date;
+      hosts.SetDate(world.date);
+      //Happy Birthday - patches reset everyone who isn't sick and set aside the sick hosts
+      long totalSick = world.GetTotalSick();
+      RunPhase(PHASE_BIRTHDAY);
+      //Don't let all sick hosts be reset (the quota is handed out in patch order)
+      long quota = Math.max(0, totalSick - Main.simulationInfo.minCarriers);
+      for (int p = 0; p < dueSick.length && quota > 0; p++) {
+         for (int i = 0; i < dueSick[p].GetSize() && quota > 0; i++) {
+            world.ResetSick(dueSick[p].Get(i));
+            --quota;
+         }
+      }
+      //Reset daily patch stats
+      for (Patch patch : world.patches) {
+         patch.stats.incidence = 0;
+      }
+      //Reset daily strain stats, and sort the sick hosts by patch
+      for (int p = 0; p < sick.length; p++) {
+         sick[p].Clear();
+      }
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
+         strain.stats.incidence = 0;
+         for (int host = knownStrains.GetFirstHost(strain); host != InfectionIndex.NONE; host = knownStrains.GetNextHost(host)) {
+            sick[hosts.GetPatch(host)].Add(host);
+         }
+      }
+      //Mutate the virus in each infected host for this day
+      RunPhase(PHASE_MUTATION);
+      //Merge new strains with existing strains (IDs are assigned here so they don't depend on thread timing)
+      world.lineageStats.clear();
+      GenotypeTable genotypes = knownStrains.GetGenotypes();
+      for (int p = 0; p < mutatedHosts.length; p++) {
+         for (int i = 0; i < mutatedHosts[p].GetSize(); i++) {
+            int host = mutatedHosts[p].Get(i);
+            Strain lastInfectionStrain = hosts.GetStrain(host);
+            Strain newStrain = mutatedStrains[p].get(i);
+            if (genotypes != null && genotypes.Get(newStrain.genomeLow, newStrain.genomeHigh) != null) {
+               //The genotype was already circulating, or was created by an earlier patch today
+               newStrain = genotypes.Get(newStrain.genomeLow, newStrain.genomeHigh);
+               world.RecordLineage(lastInfectionStrain, newStrain);
+            }
+            if (newStrain.stats.id == StrainStats.UNASSIGNED_ID) {
+               newStrain.stats.id = StrainStats.nextStrainID++;
+            }
+            knownStrains.Remove(lastInfectionStrain, host);
+            hosts.Infect(host, hosts.lastInfectionDate[host], newStrain);
+            if (!knownStrains.Contains(newStrain)) {
+               knownStrains.AddStrain(newStrain);
+            }
+            knownStrains.Add(newStrain, host);
+         }
+      }
+      //Move hosts through today's transitions (see World.RunTransitions)
+      world.RunTransitions();
+      //Sort the infectious hosts by patch, and take the rest of today's recovered hosts out of the index up front
+      //(nothing has been reinfected yet, so everyone left in the infectious lists is infectious or recovered)
+      lastRecoveredHosts.Clear();
+      for (int p = 0; p < sick.length; p++) {
+         sick[p].Clear();
+      }
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
+         for (int host = knownStrains.GetFirstInfectious(strain); host != InfectionIndex.NONE; host = knownStrains.GetNextInfectious(host)) {
+            if (hosts.IsInfectious(host, world.date)) {
+               sick[hosts.GetPatch(host)].Add(host);
+            } else {
+               lastRecoveredHosts.Add(host);
+            }
+         }
+      }
+      for (int i = 0; i < lastRecoveredHosts.GetSize(); i++) {
+         int host = lastRecoveredHosts.Get(i);
+         knownStrains.Remove(hosts.GetStrain(host), host);
+      }
+      //Infect - first within each patch, then between patches
+      RunPhase(PHASE_INFECTION_LOCAL);
+      RunPhase(PHASE_INFECTION_GLOBAL);
+      //Apply the infections to the index in patch order
+      for (int p = 0; p < infectedHosts.length; p++) {
+         for (int i = 0; i < infectedHosts[p].GetSize(); i++) {
+            int host = infectedHosts[p].Get(i);
+            Strain lastInfectionStrain = oldStrains[p].get(i);
+            Strain infectedStrain = newStrains[p].get(i);
+            if (lastInfectionStrain != null && lastInfectionStrain != infectedStrain) {
+               if (knownStrains.Contains(lastInfectionStrain)) {
+                  knownStrains.Remove(lastInfectionStrain, host);
+               }
+            }
+            knownStrains.Add(infectedStrain, host);
+            world.ScheduleTransitions(host);
+            //Update incidence statistics for strains
+            infectedStrain.stats.incidence++;
+         }
+      }
+      //Remove extinct strains
+      extinctStrains.clear();
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
+         if (knownStrains.GetSize(strain) == 0) {
+            extinctStrains.add(strain);
+         }
+      }
+      for (int i = 0; i < extinctStrains.size(); i++) {
+         knownStrains.RemoveStrain(extinctStrains.get(i));
+      }
+      totalSick = world.GetTotalSick();
+      if (totalSick < Main.simulationInfo.minCarriers) {
+         //Keeping a minimum viral reservoir of SimulationInfo.minCarriers (see World.UpdateSequential)
+         int index = 0;
+         while (index < lastRecoveredHosts.GetSize() && totalSick < Main.simulationInfo.minCarriers) {
+            int host = lastRecoveredHosts.Get(index++);
+            if (hosts.IsSick(host, world.date)) {
+               //Reinfected today, so already counted
+               continue;
+            }
+            ++totalSick;
+            Strain lastInfectionStrain = hosts.GetStrain(host);
+            hosts.SetLastInfectionDate(host, world.date);
+            if (!knownStrains.Contains(lastInfectionStrain)) {
+               knownStrains.AddStrain(lastInfectionStrain);
+            }
+            knownStrains.Add(lastInfectionStrain, host);
+            world.ScheduleTransitions(host);
+         }
+      }
+      //Maybe Update Patch Stats
+      if (Main.simulationInfo.patchStatsAlgorithm == SimulationInfo.Algorithm.PatchStats_All) {
+         for (Patch patch : world.patches) {
+            world.UpdatePatchStats(patch);
+         }
+      }
+      world.UpdateStrainStats();
+   }
+
+   //The index of the next sick host (starting at i) in patch p that should be replicated
+   protected int NextMutation(int p, int i) {
+      //Skip the hosts that aren't replicated
+      world.Seek(randoms[p], i == 0 ? World.NO_STREAM - p : sick[p].Get(i - 1), World.PURPOSE_MUTATION_GAP, 0);
+      long gap = world.mutation.DrawGap(randoms[p]);
+      return gap < sick[p].GetSize() - i ? i + (int) gap : sick[p].GetSize();
+   }
+
+   //Runs one phase of the day for every patch, blocking until they are all done
+   protected void RunPhase(int phase) {
+      pool.invoke(new PatchTask(phase, 0, world.patches.length));
+   }
+
+   //The work done by a single patch during a phase - only this patch's hosts are modified
+   protected void RunPatch(int phase, int p) {
+      HostStore hosts = world.hosts;
+      Patch patch = world.patches[p];
+      int date = world.date;
+      switch (phase) {
+         case PHASE_BIRTHDAY:
+            world.ResetBirthdays(patch, dueSick[p]);
+            break;
+         case PHASE_MUTATION:
+            mutatedHosts[p].Clear();
+            mutatedStrains[p].clear();
+            for (int i = NextMutation(p, 0); i < sick[p].GetSize(); i = NextMutation(p, i + 1)) {
+               int host = sick[p].Get(i);
+               Strain lastInfectionStrain = hosts.GetStrain(host);
+               //The genotype table is only read here, it's updated during the merge
+               world.Seek(randoms[p], host, World.PURPOSE_MUTATION, 0);
+               Strain newStrain = lastInfectionStrain.Replicate(date, randoms[p], false, world.knownStrains.GetGenotypes(), sites[p]);
+               if (newStrain != lastInfectionStrain) {
+                  mutatedHosts[p].Add(host);
+                  mutatedStrains[p].add(newStrain);
+               }
+            }
+            break;
+         case PHASE_INFECTION_LOCAL:
+            infectedHosts[p].Clear();
+            oldStrains[p].clear();
+            newStrains[p].clear();
+            for (int i = 0; i < outboxDestinations[p].GetSize(); i++) {
+               outboxes[p][outboxDestinations[p].Get(i)].Clear();
+            }
+            outboxDestinations[p].Clear();
+            for (int i = 0; i < sick[p].GetSize(); i++) {
+               int infectedHost = sick[p].Get(i);
+               if (!hosts.IsInfectious(infectedHost, date)) {
+                  //Reinfected earlier in this phase
+                  continue;
+               }
+               Strain infectedStrain = hosts.GetStrain(infectedHost);
+               int deme = world.GetDeme(p);
+               int dayOfYear = world.GetDayOfYear(deme);
+               //Exposures in other patches are resolved by the other patch in the next phase
+               exposures[p].Clear();
+               world.Seek(randoms[p], infectedHost, World.PURPOSE_EXPOSURE, 0);
+               world.ExposeGlobal(p, dayOfYear, randoms[p], exposures[p]);
+               int numGlobal = exposures[p].GetSize();
+               for (int j = 0; j < numGlobal; j++) {
+                  int host = exposures[p].Get(j);
+                  int destination = hosts.GetPatch(host);
+                  Outbox outbox = outboxes[p][destination];
+                  if (outbox == null) {
+                     outbox = new Outbox();
+                     outboxes[p][destination] = outbox;
+                  }
+                  if (outbox.hosts.GetSize() == 0) {
+                     outboxDestinations[p].Add(destination);
+                  }
+                  outbox.Add(host, infectedStrain, infectedHost, j);
+               }
+               exposures[p].Clear();
+               world.ExposePatch(p, dayOfYear, randoms[p], exposures[p]);
+               world.ExposeLocal(infectedHost, deme, dayOfYear, randoms[p], exposures[p]);
+               for (int j = 0; j < exposures[p].GetSize(); j++) {
+                  //Exposures are numbered the same way as in World (global exposures first)
+                  Expose(p, exposures[p].Get(j), infectedStrain, infectedHost, numGlobal + j);
+               }
+            }
+            break;
+         case PHASE_INFECTION_GLOBAL:
+            //Resolve the exposures other patches made in this one, in patch order
+            for (int source = 0; source < outboxes.length; source++) {
+               Outbox outbox = outboxes[source][p];
+               if (outbox == null) {
+                  continue;
+               }
+               for (int i = 0; i < outbox.hosts.GetSize(); i++) {
+                  Expose(p, outbox.hosts.Get(i), outbox.strains.get(i), outbox.sources.Get(i), outbox.indices.Get(i));
+               }
+            }
+            break;
+         default:
+            throw new RuntimeException("Invalid phase: " + phase);
+      }
+   }
+
+   //Exposes a host in patch p (the index'th exposure by infectedHost), recording the infection so
+   //the index can be updated later
+   protected void Expose(int p, int host, Strain strain, int infectedHost, int index) {
+      Strain lastInfectionStrain = world.hosts.GetStrain(host);
+      world.Seek(randoms[p], infectedHost, World.PURPOSE_INFECTION, index);
+      if (world.TryInfect(host, strain, randoms[p])) {
+         infectedHosts[p].Add(host);
+         oldStrains[p].add(lastInfectionStrain);
+         newStrains[p].add(strain);
+      }
+   }
+
+   //With Random_Counter, the streams have no state of their own (just the seed and the date), so nothing is saved
+   public void SaveState(DataOutput out) throws IOException {
+      if (Main.simulationInfo.randomAlgorithm == SimulationInfo.Algorithm.Random_Counter) {
+         return;
+      }
+      for (int i = 0; i < randoms.length; i++) {
+         randoms[i].SaveState(out);
+      }
+   }
+
+   public void LoadState(DataInput in) throws IOException {
+      if (Main.simulationInfo.randomAlgorithm == SimulationInfo.Algorithm.Random_Counter) {
+         return;
+      }
+      for (int i = 0; i < randoms.length; i++) {
+         randoms[i].LoadState(in);
+      }
+   }
+
+   //Splits a range of patches across the pool
+   protected class PatchTask extends RecursiveAction {
+
+      public PatchTask(int phase, int first, int last) {
+         this.phase = phase;
+         this.first = first;
+         this.last = last;
+      }
+
+      @Override
+      protected void compute() {
+         if (last - first <= 1) {
+            for (int p = first; p < last; p++) {
+               RunPatch(phase, p);
+            }
+         } else {
+            int middle = (first + last) / 2;
+            invokeAll(new PatchTask(phase, first, middle), new PatchTask(phase, middle, last));
+         }
+      }
+      private static final long serialVersionUID = 1L;
+      protected int phase;
+      protected int first;
+      protected int last;
+   }
+   //The global exposures one patch made in another, in the order they were made
+   protected static class Outbox {
+
+      public void Add(int host, Strain strain, int source, int index) {
+         hosts.Add(host);
+         strains.add(strain);
+         sources.Add(source);
+         indices.Add(index);
+      }
+
+      public void Clear() {
+         hosts.Clear();
+         strains.clear();
+         sources.Clear();
+         indices.Clear();
+      }
+      protected IntList hosts = new IntList();
+      protected ArrayList<Strain> strains = new ArrayList<>();
+      //The host that made each exposure, and which of its exposures it was
+      protected IntList sources = new IntList();
+      protected IntList indices = new IntList();
+   }
+   protected static final int PHASE_BIRTHDAY = 0;
+   protected static final int PHASE_MUTATION = 1;
+   protected static final int PHASE_INFECTION_LOCAL = 2;
+   protected static final int PHASE_INFECTION_GLOBAL = 3;
+   protected World world;
+   protected ForkJoinPool pool;
+   protected RandomSource[] randoms;
+   //Scratch space, reused every day
+   protected IntList lastRecoveredHosts;
+   protected ArrayList<Strain> extinctStrains;
+   protected IntList[] dueSick;
+   protected IntList[] sick;
+   protected IntList[] mutatedHosts;
+   protected ArrayList<Strain>[] mutatedStrains;
+   //Replicate's scratch space (patches replicate at the same time, so each has its own)
+   protected int[][] sites;
+   protected IntList[] exposures;
+   //Indexed by source patch, then destination patch (created the first time a patch is exposed by another)
+   protected Outbox[][] outboxes;
+   //The destinations each source patch has exposed today, so only those outboxes are cleared
+   protected IntList[] outboxDestinations;
+   protected IntList[] infectedHosts;
+   protected ArrayList<Strain>[] oldStrains;
+   protected ArrayList<Strain>[] newStrains;
+}
@@ -7,27 +7,18 @@ import util.LinkedHashMap;
 
 public class Patch {
 
-   public Patch(SimulationInfo simulationInfo, int id, Host[] refHosts) {
+   public Patch(SimulationInfo simulationInfo, int id, HostStore hosts) {
       stats = new PatchStats(simulationInfo.hostsPerPatch, 0, 0, 0, 0);
-      //Allocate hosts
-      hosts = new Host[simulationInfo.hostsPerPatch];
-      //Create hosts
-      if (id != 0 && refHosts != null) {
-         //Reuse the existing neighborhood map
-         for (int i = 0; i < hosts.length; i++) {
-            hosts[i] = new Host(id, i);
-            hosts[i].numNeighbors = refHosts[i].numNeighbors;
-            hosts[i].neighborIndex = refHosts[i].neighborIndex;
-         }
+      this.id = id;
+      this.hosts = hosts;
+      firstHost = hosts.GetHost(id, 0);
+      numHosts = simulationInfo.hostsPerPatch;
+      if (id != 0) {
+         //Reuse the existing neighborhood map (it's shared by all patches in the host store)
          return;
-      } else {
-         //Create the hosts now, and create/load the neighborhood later
-         for (int i = 0; i < hosts.length; i++) {
-            hosts[i] = new Host(id, i);
-         }
       }
       //Try to read a saved patch file - the host locations and neighborhood map are stored in this file
-      File file = new File(String.format("patch-%d.bin", hosts.length));
+      File file = new File(String.format("patch-%d.bin", numHosts));
       try {
          if (file.exists()) {
             //A file with the right name exists
@@ -47,35 +38,39 @@ public class Patch {
    }
 
    public void Load(DataInput dis) throws IOException {
-      int numHosts = dis.readInt();
+      int fileHosts = dis.readInt();
       //Make sure the number oh hosts in the file matched the expected number
-      if (numHosts != hosts.length) {
-         throw new IOException("File has " + numHosts + " hosts, Patch has " + hosts.length + " hosts");
+      if (fileHosts != numHosts) {
+         throw new IOException("File has " + fileHosts + " hosts, Patch has " + numHosts + " hosts");
       }
       int arrayLength = dis.readInt();
       int offset = 0;
-      Host.neighborList = new int[arrayLength];
-      for (int i = 0; i < hosts.length; i++) {
-         hosts[i].numNeighbors = dis.readByte();
-         hosts[i].neighborIndex = offset;
-         offset += hosts[i].numNeighbors;
+      hosts.neighborList = new int[arrayLength];
+      for (int i = 0; i < numHosts; i++) {
+         hosts.numNeighbors[i] = dis.readByte();
+         hosts.neighborIndex[i] = offset;
+         offset += hosts.numNeighbors[i];
       }
       for (int i = 0; i < arrayLength; i++) {
-         Host.neighborList[i] = dis.readInt();
+         hosts.neighborList[i] = dis.readInt();
       }
    }
 
    public void SaveState(DataOutput out) throws IOException {
-      for (Host host : hosts) {
-         host.SaveState(out);
+      for (int i = 0; i < numHosts; i++) {
+         hosts.SaveState(firstHost + i, out);
       }
    }
 
    public void LoadState(DataInput in, LinkedHashMap<Integer, Strain> strains) throws IOException {
-      for (Host host : hosts) {
-         host.LoadState(in, strains);
+      for (int i = 0; i < numHosts; i++) {
+         hosts.LoadState(firstHost + i, in, strains);
       }
    }
-   public Host[] hosts;
+   public int id;
+   public HostStore hosts;
+   //Global index of this patch's first host; the patch owns [firstHost, firstHost + numHosts)
+   public int firstHost;
+   public int numHosts;
    public PatchStats stats;
 }
@@ -0,0 +1,152 @@
+package fergusonmodel;
+
+import stats.SimulationInfo;
+
+/*
+ * Draws from a discrete distribution, given as a CDF (like the precalculated
+ * tables in Main). The tables are only read after they're built, so a sampler
+ * can be shared between threads.
+ *
+ * Tail policy: the tables are truncated, so a random number above the last
+ * entry of the CDF draws cdf.length (one past the end of the table). This is
+ * what Main.DrawFromDistribution has always returned, but only Sampler_Linear
+ * prints a warning when it happens.
+ */
+public abstract class Sampler {
+
+   public static Sampler Create(double[] cdf, SimulationInfo.Algorithm algorithm) {
+      switch (algorithm) {
+         case Sampler_Linear:
+            return new LinearSampler(cdf);
+         case Sampler_Guide:
+            return new GuideSampler(cdf);
+         case Sampler_Alias:
+            return new AliasSampler(cdf);
+         default:
+            throw new RuntimeException("Invalid sampler algorithm: " + algorithm);
+      }
+   }
+
+   public static Sampler[] Create(double[][] cdfs, SimulationInfo.Algorithm algorithm) {
+      Sampler[] samplers = new Sampler[cdfs.length];
+      for (int i = 0; i < cdfs.length; i++) {
+         samplers[i] = Create(cdfs[i], algorithm);
+      }
+      return samplers;
+   }
+
+   //Draws a value, given a uniform random number in [0, 1)
+   public abstract int Draw(double rand);
+
+   //Scans the CDF from the start (Main.DrawFromDistribution)
+   protected static class LinearSampler extends Sampler {
+
+      public LinearSampler(double[] cdf) {
+         this.cdf = cdf;
+      }
+
+      @Override
+      public int Draw(double rand) {
+         return Main.DrawFromDistribution(cdf, rand);
+      }
+      protected double[] cdf;
+   }
+
+   //Starts the scan at the first entry that could match (Chen and Asau's guide table). The number
+   //of buckets is a power of 2, so finding the bucket is exact and the results are the same as
+   //LinearSampler's.
+   protected static class GuideSampler extends Sampler {
+
+      public GuideSampler(double[] cdf) {
+         this.cdf = cdf;
+         int numBuckets = Integer.highestOneBit(Math.max(1, cdf.length));
+         if (numBuckets < cdf.length) {
+            numBuckets *= 2;
+         }
+         guide = new int[numBuckets];
+         int index = 0;
+         for (int bucket = 0; bucket < numBuckets; bucket++) {
+            //The first entry that's at least the smallest random number in this bucket
+            while (index < cdf.length && cdf[index] < (double) bucket / numBuckets) {
+               ++index;
+            }
+            guide[bucket] = index;
+         }
+      }
+
+      @Override
+      public int Draw(double rand) {
+         int index = guide[(int) (rand * guide.length)];
+         while (index < cdf.length && cdf[index] < rand) {
+            ++index;
+         }
+         return index;
+      }
+      protected double[] cdf;
+      protected int[] guide;
+   }
+
+   //Walker's alias method, built with Vose's algorithm. Draws take constant time, but a random
+   //number doesn't map to the same value as with the other samplers.
+   protected static class AliasSampler extends Sampler {
+
+      public AliasSampler(double[] cdf) {
+         //The extra value is the tail past the end of the table
+         int n = cdf.length + 1;
+         double[] scaled = new double[n];
+         double total = 0;
+         for (int i = 0; i < n; i++) {
+            double previous = (i == 0 ? 0 : cdf[i - 1]);
+            double current = (i == cdf.length ? 1 : cdf[i]);
+            scaled[i] = Math.max(0, current - previous);
+            total += scaled[i];
+         }
+         probability = new double[n];
+         alias = new int[n];
+         int[] small = new int[n];
+         int[] large = new int[n];
+         int numSmall = 0;
+         int numLarge = 0;
+         for (int i = 0; i < n; i++) {
+            scaled[i] *= n / total;
+            if (scaled[i] < 1) {
+               small[numSmall++] = i;
+            } else {
+               large[numLarge++] = i;
+            }
+         }
+         while (numSmall > 0 && numLarge > 0) {
+            int less = small[--numSmall];
+            int more = large[--numLarge];
+            probability[less] = scaled[less];
+            alias[less] = more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1;
+            if (scaled[more] < 1) {
+               small[numSmall++] = more;
+            } else {
+               large[numLarge++] = more;
+            }
+         }
+         //Whatever is left over is (up to rounding) exactly 1
+         while (numLarge > 0) {
+            int i = large[--numLarge];
+            probability[i] = 1;
+            alias[i] = i;
+         }
+         while (numSmall > 0) {
+            int i = small[--numSmall];
+            probability[i] = 1;
+            alias[i] = i;
+         }
+      }
+
+      @Override
+      public int Draw(double rand) {
+         double x = rand * probability.length;
+         int index = (int) x;
+         return (x - index < probability[index]) ? index : alias[index];
+      }
+      protected double[] probability;
+      protected int[] alias;
+   }
+}
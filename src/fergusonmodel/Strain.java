@@ -3,72 +3,67 @@ package fergusonmodel;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
 import stats.StrainStats;
+import util.GeneticCode;
+import util.RandomSource;
 
 public class Strain {
 
    public Strain(int date, byte[] rna) {
-      epitopes = new byte[Main.simulationInfo.numEpitopes][Main.simulationInfo.codonsPerEpitope];
+      this(date, PackGenome(rna, 0), PackGenome(rna, CODONS_PER_WORD), StrainStats.nextStrainID++);
+   }
+
+   //Creates a strain from a packed genome with a specific ID (use StrainStats.UNASSIGNED_ID if the ID will be assigned later)
+   public Strain(int date, long genomeLow, long genomeHigh, int id) {
       firstSeenDate = date;
-      this.rna = rna;
-      int nucleicAcid = 0;
-      for (int i = 0; i < epitopes.length; i++) {
-         for (int j = 0; j < epitopes[0].length; j++) {
-            int na1 = ((rna[nucleicAcid / 4] & 0xFF) >> ((nucleicAcid % 4) * 2)) & 0x03;
-            ++nucleicAcid;
-            int na2 = ((rna[nucleicAcid / 4] & 0xFF) >> ((nucleicAcid % 4) * 2)) & 0x03;
-            ++nucleicAcid;
-            int na3 = ((rna[nucleicAcid / 4] & 0xFF) >> ((nucleicAcid % 4) * 2)) & 0x03;
-            ++nucleicAcid;
-            epitopes[i][j] = codonToAA[GetCodon(na1, na2, na3)];
-         }
+      this.genomeLow = genomeLow;
+      this.genomeHigh = genomeHigh;
+      slot = HostStore.NO_STRAIN;
+      indexFirstHost = InfectionIndex.NONE;
+      indexFirstInfectious = InfectionIndex.NONE;
+      //One bit per (codon, amino acid), laid out the same way as the host immune history
+      int numCodons = GetNumCodons();
+      immuneMask = new long[(numCodons * 20 + 63) / 64];
+      for (int i = 0; i < numCodons; i++) {
+         int bitIndex = i * 20 + codonToAA[GetCodonAt(genomeLow, genomeHigh, i)];
+         immuneMask[bitIndex >>> 6] |= 1L << (bitIndex & 63);
       }
-      stats = new StrainStats();
-      stats.rna = GetRNAString();
-      stats.protein = GetProtinString();
+      stats = new StrainStats(genomeLow, genomeHigh, GetNumCodons(), id, StrainStats.NULL_PARENT, 0, 0, 0, 0);
    }
 
    public String GetRNAString() {
-      StringBuilder sb = new StringBuilder();
-      for (int spot = 0; spot < epitopes.length * epitopes[0].length * 3; ++spot) {
-         int arrayIndex = spot / 4;
-         int shift = (spot % 4) * 2;
-         int na1 = ((rna[arrayIndex] & 0xFF) >> shift) & 0x03;
-         switch (na1) {
-            case U:
-               sb.append("U");
-               break;
-            case C:
-               sb.append("C");
-               break;
-            case A:
-               sb.append("A");
-               break;
-            case G:
-               sb.append("G");
-               break;
-         }
-      }
-      return sb.toString();
+      return GetRNAString(genomeLow, genomeHigh);
+   }
+
+   public static String GetRNAString(long genomeLow, long genomeHigh) {
+      return GeneticCode.GetRNAString(genomeLow, genomeHigh, GetNumCodons());
    }
 
    public String GetProtinString() {
-      StringBuilder sb = new StringBuilder();
-      for (int i = 0; i < epitopes.length; i++) {
-         for (int j = 0; j < epitopes[0].length; j++) {
-            sb.append(aaIntToStr.get(epitopes[i][j] & 0xFF));
+      return GetProtinString(genomeLow, genomeHigh);
+   }
+
+   public static String GetProtinString(long genomeLow, long genomeHigh) {
+      return GeneticCode.GetProteinString(genomeLow, genomeHigh, GetNumCodons());
+   }
+
+   //The genome as RNA bytes (4 nucleic acids per byte, the format used in save states)
+   public byte[] GetRNA() {
+      byte[] rna = new byte[(GetNumCodons() * 3 + 3) / 4];
+      int nucleicAcid = 0;
+      for (int i = 0; i < GetNumCodons(); i++) {
+         int codon = GetCodonAt(genomeLow, genomeHigh, i);
+         for (int shift = 4; shift >= 0; shift -= 2) {
+            rna[nucleicAcid / 4] = (byte) ((rna[nucleicAcid / 4] & 0xFF) | (((codon >> shift) & 0x03) << ((nucleicAcid % 4) * 2)));
+            ++nucleicAcid;
          }
       }
-      return sb.toString();
+      return rna;
    }
 
    public static byte[] DecodeGenotype(String rnaString) {
-      //todo - precalculate this
-      int length = ((Main.simulationInfo.numEpitopes * Main.simulationInfo.codonsPerEpitope * 3 + 3) / 4);
+      int length = (GetNumCodons() * 3 + 3) / 4;
       byte[] rna = new byte[length];
       int nucleicAcid = 0;
       for (int stringIndex = 0; stringIndex < rnaString.length(); stringIndex++) {
@@ -94,68 +89,108 @@ public class Strain {
       return rna;
    }
 
-   public Strain Replicate(int date) {
-      int numMutations = 0;
-      switch (Main.simulationInfo.mutationAlgorithm) {
-         case Mutation_Approximate:
-            if (Main.RANDOM.nextDouble() < Main.simulationInfo.mutationProbability * epitopes.length * epitopes[0].length * 3) {
-               numMutations = 1;
-            }
-            break;
-         case Mutation_Exact:
-            numMutations = Main.DrawFromDistribution(Main.BINOMIAL_STRAIN, Main.RANDOM.nextDouble());
-            break;
-         case Mutation_None:
-            //Leave numMutations set to 0
-            break;
-         default:
-            throw new RuntimeException("Invalid mutation algorithm: " + Main.simulationInfo.mutationAlgorithm);
+   //Packs the codons of RNA bytes into one word of a genome, starting at firstCodon
+   public static long PackGenome(byte[] rna, int firstCodon) {
+      long word = 0;
+      int lastCodon = Math.min(GetNumCodons(), firstCodon + CODONS_PER_WORD);
+      for (int i = firstCodon; i < lastCodon; i++) {
+         int codon = 0;
+         for (int j = 0; j < 3; j++) {
+            int nucleicAcid = i * 3 + j;
+            codon = (codon << 2) | (((rna[nucleicAcid / 4] & 0xFF) >> ((nucleicAcid % 4) * 2)) & 0x03);
+         }
+         word |= (long) codon << ((i - firstCodon) * 6);
       }
+      return word;
+   }
+
+   //The codon at the given index (epitope * codonsPerEpitope + codon) of a packed genome
+   public static int GetCodonAt(long genomeLow, long genomeHigh, int index) {
+      return GeneticCode.GetCodonAt(genomeLow, genomeHigh, index);
+   }
+
+   public static int GetNumCodons() {
+      return Main.simulationInfo.numEpitopes * Main.simulationInfo.codonsPerEpitope;
+   }
+
+   public Strain Replicate(int date) {
+      return Replicate(date, Main.RANDOM, true, null, NewSites());
+   }
+
+   //Scratch space for Replicate, one per thread that replicates (every site is shuffled into it)
+   public static int[] NewSites() {
+      return new int[GetNumCodons() * 3];
+   }
+
+   //Replicates the virus using the given RNG. If assignID is false, the new strain's ID is left
+   //as StrainStats.UNASSIGNED_ID so the caller can assign IDs in a deterministic order. If
+   //genotypes is given (Strain_Interned), a mutation into a genotype that's already in the table
+   //returns the existing strain instead of creating a new one. Sites is scratch space from NewSites,
+   //so nothing is allocated unless a new strain is created.
+   public Strain Replicate(int date, RandomSource random, boolean assignID, GenotypeTable genotypes, int[] sites) {
+      int numMutations = Main.KERNEL.GetMutation().DrawNumMutations(random);
       if (numMutations > 0) {
-         byte[] newRNA = Arrays.copyOf(rna, rna.length);
-         ArrayList<Integer> possibleSites = null;
+         long newLow = genomeLow;
+         long newHigh = genomeHigh;
          if (numMutations > 1) {
-            possibleSites = new ArrayList<>();
-            for (int i = 0; i < epitopes.length; i++) {
-               for (int j = 0; j < epitopes[0].length; j++) {
-                  for (int k = 0; k < 3; k++) {
-                     possibleSites.add((i << 16) | (j << 8) | k);
-                  }
-               }
+            //Shuffle every site (codon * 3 + nucleic acid), drawing the same numbers as Collections.shuffle
+            for (int i = 0; i < sites.length; i++) {
+               sites[i] = i;
+            }
+            for (int i = sites.length; i > 1; i--) {
+               int j = random.nextInt(i);
+               int temp = sites[i - 1];
+               sites[i - 1] = sites[j];
+               sites[j] = temp;
             }
-            Collections.shuffle(possibleSites, Main.RANDOM);
          }
+         //One bit per codon that was mutated
+         int mutatedCodons = 0;
          for (int mutationCounter = 0; mutationCounter < numMutations; mutationCounter++) {
-            int epitope;
-            int codon;
+            int codonIndex;
             int naIndex;
             if (numMutations == 1) {
-               epitope = Main.RANDOM.nextInt(epitopes.length);
-               codon = Main.RANDOM.nextInt(epitopes[0].length);
-               naIndex = Main.RANDOM.nextInt(3);
+               int epitope = random.nextInt(Main.simulationInfo.numEpitopes);
+               int codon = random.nextInt(Main.simulationInfo.codonsPerEpitope);
+               codonIndex = epitope * Main.simulationInfo.codonsPerEpitope + codon;
+               naIndex = random.nextInt(3);
             } else {
-               int temp = possibleSites.remove(0);
-               epitope = (temp >> 16) & 0xFF;
-               codon = (temp >> 8) & 0xFF;
-               naIndex = temp & 0xFF;
+               codonIndex = sites[mutationCounter] / 3;
+               naIndex = sites[mutationCounter] % 3;
             }
-            int nucleicAcid = epitope * Main.simulationInfo.codonsPerEpitope * 3 + codon * 3 + naIndex;
-            byte oldNA = (byte) (((rna[nucleicAcid / 4] & 0xFF) >> ((nucleicAcid % 4) * 2)) & 0x03);
-            byte newNA = (byte) Main.RANDOM.nextInt(3);
-            if (newNA >= oldNA) {
-               ++newNA;
+            //Swap the codon for one of its 9 point mutations
+            int mutation = naIndex * 3 + random.nextInt(3);
+            if (codonIndex < CODONS_PER_WORD) {
+               int shift = codonIndex * 6;
+               int newCodon = pointMutations[(((int) (newLow >>> shift) & 0x3F) * 9) + mutation];
+               newLow = (newLow & ~(0x3FL << shift)) | ((long) newCodon << shift);
+            } else {
+               int shift = (codonIndex - CODONS_PER_WORD) * 6;
+               int newCodon = pointMutations[(((int) (newHigh >>> shift) & 0x3F) * 9) + mutation];
+               newHigh = (newHigh & ~(0x3FL << shift)) | ((long) newCodon << shift);
             }
-            //Clear out the previous NA
-            newRNA[nucleicAcid / 4] = (byte) ((newRNA[nucleicAcid / 4] & 0xFF) & ~(0x03 << ((nucleicAcid % 4) * 2)));
-            //Write the new NA
-            newRNA[nucleicAcid / 4] = (byte) ((newRNA[nucleicAcid / 4] & 0xFF) | ((newNA & 0xFF) << ((nucleicAcid % 4) * 2)));
+            mutatedCodons |= 1 << codonIndex;
          }
-         //Create the new Strain
-         Strain strain = new Strain(date, newRNA);
-         if (strain.GetProtinString().contains(".")) {
-            //The mutation introduced a stop codon, so it's not valid
-            return this;
+         for (int bits = mutatedCodons; bits != 0; bits &= bits - 1) {
+            if (codonToAA[GetCodonAt(newLow, newHigh, Integer.numberOfTrailingZeros(bits))] == STOP) {
+               //The mutation introduced a stop codon, so it's not valid
+               if (assignID) {
+                  //The new strain used to be created (taking an ID) before this check, so skip an ID
+                  //to keep strain IDs the same as before
+                  ++StrainStats.nextStrainID;
+               }
+               return this;
+            }
          }
+         if (genotypes != null) {
+            Strain strain = genotypes.Get(newLow, newHigh);
+            if (strain != null) {
+               //This genotype is already circulating
+               return strain;
+            }
+         }
+         //Create the new Strain
+         Strain strain = new Strain(date, newLow, newHigh, assignID ? StrainStats.nextStrainID++ : StrainStats.UNASSIGNED_ID);
          //Record lineage
          strain.stats.parentID = stats.id;
          //Increment the mutation counter
@@ -175,7 +210,7 @@ public class Strain {
       out.writeInt(stats.mutations);
       out.writeInt(stats.parentID);
       out.writeInt(firstSeenDate);
-      out.write(rna);
+      out.write(GetRNA());
    }
 
    public static Strain LoadState(DataInput in) throws IOException {
@@ -186,9 +221,7 @@ public class Strain {
       int mutations = in.readInt();
       int parentID = in.readInt();
       int firstSeenDate = in.readInt();
-      //todo - precalculate this
-      int length = ((Main.simulationInfo.numEpitopes * Main.simulationInfo.codonsPerEpitope * 3 + 3) / 4);
-      byte[] rna = new byte[length];
+      byte[] rna = new byte[(GetNumCodons() * 3 + 3) / 4];
       in.readFully(rna);
       Strain strain = new Strain(firstSeenDate, rna);
       strain.stats.id = id;
@@ -224,128 +257,63 @@ public class Strain {
       }
       return true;
    }
-   public byte[][] epitopes;
+   //The genome, packed as 6 bit codons (3 nucleic acids, first in the high bits): codons 0-9 are in
+   //genomeLow, and the rest are in genomeHigh
+   public long genomeLow, genomeHigh;
+   public long[] immuneMask;
    public StrainStats stats;
-   public byte[] rna;
    public int firstSeenDate;
-   public static final int A = 0;
-   public static final int U = 1;
-   public static final int G = 2;
-   public static final int C = 3;
-   public static final int ALA = 0;
-   public static final int ARG = 1;
-   public static final int ASN = 2;
-   public static final int ASP = 3;
-   public static final int CYS = 4;
-   public static final int GLN = 5;
-   public static final int GLU = 6;
-   public static final int GLY = 7;
-   public static final int HIS = 8;
-   public static final int ILE = 9;
-   public static final int LEU = 10;
-   public static final int LYS = 11;
-   public static final int MET = 12;
-   public static final int PHE = 13;
-   public static final int PRO = 14;
-   public static final int SER = 15;
-   public static final int THR = 16;
-   public static final int TRP = 17;
-   public static final int TYR = 18;
-   public static final int VAL = 19;
-   public static final int STOP = 20;
-   public static final byte[] codonToAA = new byte[64];
-   public static final HashMap<Integer, String> aaIntToStr = new HashMap<>();
+   //Position in the HostStore strain registry
+   public int slot;
+   //Bookkeeping for the InfectionIndex
+   public boolean indexed;
+   public Strain indexPrev, indexNext;
+   public int indexFirstHost;
+   public int indexFirstInfectious;
+   public int indexSize;
+   public static final int A = GeneticCode.A;
+   public static final int U = GeneticCode.U;
+   public static final int G = GeneticCode.G;
+   public static final int C = GeneticCode.C;
+   public static final int ALA = GeneticCode.ALA;
+   public static final int ARG = GeneticCode.ARG;
+   public static final int ASN = GeneticCode.ASN;
+   public static final int ASP = GeneticCode.ASP;
+   public static final int CYS = GeneticCode.CYS;
+   public static final int GLN = GeneticCode.GLN;
+   public static final int GLU = GeneticCode.GLU;
+   public static final int GLY = GeneticCode.GLY;
+   public static final int HIS = GeneticCode.HIS;
+   public static final int ILE = GeneticCode.ILE;
+   public static final int LEU = GeneticCode.LEU;
+   public static final int LYS = GeneticCode.LYS;
+   public static final int MET = GeneticCode.MET;
+   public static final int PHE = GeneticCode.PHE;
+   public static final int PRO = GeneticCode.PRO;
+   public static final int SER = GeneticCode.SER;
+   public static final int THR = GeneticCode.THR;
+   public static final int TRP = GeneticCode.TRP;
+   public static final int TYR = GeneticCode.TYR;
+   public static final int VAL = GeneticCode.VAL;
+   public static final int STOP = GeneticCode.STOP;
+   public static final int CODONS_PER_WORD = GeneticCode.CODONS_PER_WORD;
+   //The genetic code (the tables are shared with GeneticCode, which decodes genomes for the stats)
+   public static final byte[] codonToAA = GeneticCode.codonToAA;
+   public static final HashMap<Integer, String> aaIntToStr = GeneticCode.aaIntToStr;
+   //The codon resulting from each point mutation, indexed by codon * 9 + nucleic acid * 3 + replacement
+   //(replacement is one of the 3 other nucleic acids, in order, skipping the current one)
+   public static final byte[] pointMutations = new byte[64 * 9];
 
    static {
-      codonToAA[GetCodon(U, U, U)] = PHE;
-      codonToAA[GetCodon(U, U, C)] = PHE;
-      codonToAA[GetCodon(U, U, A)] = LEU;
-      codonToAA[GetCodon(U, U, G)] = LEU;
-      codonToAA[GetCodon(U, C, U)] = SER;
-      codonToAA[GetCodon(U, C, C)] = SER;
-      codonToAA[GetCodon(U, C, A)] = SER;
-      codonToAA[GetCodon(U, C, G)] = SER;
-      codonToAA[GetCodon(U, A, U)] = TYR;
-      codonToAA[GetCodon(U, A, C)] = TYR;
-      codonToAA[GetCodon(U, A, A)] = STOP;
-      codonToAA[GetCodon(U, A, G)] = STOP;
-      codonToAA[GetCodon(U, G, U)] = CYS;
-      codonToAA[GetCodon(U, G, C)] = CYS;
-      codonToAA[GetCodon(U, G, A)] = STOP;
-      codonToAA[GetCodon(U, G, G)] = TRP;
-      codonToAA[GetCodon(C, U, U)] = LEU;
-      codonToAA[GetCodon(C, U, C)] = LEU;
-      codonToAA[GetCodon(C, U, A)] = LEU;
-      codonToAA[GetCodon(C, U, G)] = LEU;
-      codonToAA[GetCodon(C, C, U)] = PRO;
-      codonToAA[GetCodon(C, C, C)] = PRO;
-      codonToAA[GetCodon(C, C, A)] = PRO;
-      codonToAA[GetCodon(C, C, G)] = PRO;
-      codonToAA[GetCodon(C, A, U)] = HIS;
-      codonToAA[GetCodon(C, A, C)] = HIS;
-      codonToAA[GetCodon(C, A, A)] = GLN;
-      codonToAA[GetCodon(C, A, G)] = GLN;
-      codonToAA[GetCodon(C, G, U)] = ARG;
-      codonToAA[GetCodon(C, G, C)] = ARG;
-      codonToAA[GetCodon(C, G, A)] = ARG;
-      codonToAA[GetCodon(C, G, G)] = ARG;
-      codonToAA[GetCodon(A, U, U)] = ILE;
-      codonToAA[GetCodon(A, U, C)] = ILE;
-      codonToAA[GetCodon(A, U, A)] = ILE;
-      codonToAA[GetCodon(A, U, G)] = MET;
-      codonToAA[GetCodon(A, C, U)] = THR;
-      codonToAA[GetCodon(A, C, C)] = THR;
-      codonToAA[GetCodon(A, C, A)] = THR;
-      codonToAA[GetCodon(A, C, G)] = THR;
-      codonToAA[GetCodon(A, A, U)] = ASN;
-      codonToAA[GetCodon(A, A, C)] = ASN;
-      codonToAA[GetCodon(A, A, A)] = LYS;
-      codonToAA[GetCodon(A, A, G)] = LYS;
-      codonToAA[GetCodon(A, G, U)] = SER;
-      codonToAA[GetCodon(A, G, C)] = SER;
-      codonToAA[GetCodon(A, G, A)] = ARG;
-      codonToAA[GetCodon(A, G, G)] = ARG;
-      codonToAA[GetCodon(G, U, U)] = VAL;
-      codonToAA[GetCodon(G, U, C)] = VAL;
-      codonToAA[GetCodon(G, U, A)] = VAL;
-      codonToAA[GetCodon(G, U, G)] = VAL;
-      codonToAA[GetCodon(G, C, U)] = ALA;
-      codonToAA[GetCodon(G, C, C)] = ALA;
-      codonToAA[GetCodon(G, C, A)] = ALA;
-      codonToAA[GetCodon(G, C, G)] = ALA;
-      codonToAA[GetCodon(G, A, U)] = ASP;
-      codonToAA[GetCodon(G, A, C)] = ASP;
-      codonToAA[GetCodon(G, A, A)] = GLU;
-      codonToAA[GetCodon(G, A, G)] = GLU;
-      codonToAA[GetCodon(G, G, U)] = GLY;
-      codonToAA[GetCodon(G, G, C)] = GLY;
-      codonToAA[GetCodon(G, G, A)] = GLY;
-      codonToAA[GetCodon(G, G, G)] = GLY;
-      //
-      aaIntToStr.put(ALA, "A");
-      aaIntToStr.put(ARG, "R");
-      aaIntToStr.put(ASN, "N");
-      aaIntToStr.put(ASP, "D");
-      aaIntToStr.put(CYS, "C");
-      aaIntToStr.put(GLN, "Q");
-      aaIntToStr.put(GLU, "E");
-      aaIntToStr.put(GLY, "G");
-      aaIntToStr.put(HIS, "H");
-      aaIntToStr.put(ILE, "I");
-      aaIntToStr.put(LEU, "L");
-      aaIntToStr.put(LYS, "K");
-      aaIntToStr.put(MET, "M");
-      aaIntToStr.put(PHE, "F");
-      aaIntToStr.put(PRO, "P");
-      aaIntToStr.put(SER, "S");
-      aaIntToStr.put(THR, "T");
-      aaIntToStr.put(TRP, "W");
-      aaIntToStr.put(TYR, "Y");
-      aaIntToStr.put(VAL, "V");
-      aaIntToStr.put(STOP, ".");
-   }
-
-   private static int GetCodon(int a, int b, int c) {
-      return (a << 4) | (b << 2) | c;
+      for (int codon = 0; codon < 64; codon++) {
+         for (int naIndex = 0; naIndex < 3; naIndex++) {
+            int shift = (2 - naIndex) * 2;
+            int oldNA = (codon >> shift) & 0x03;
+            for (int replacement = 0; replacement < 3; replacement++) {
+               int newNA = replacement >= oldNA ? replacement + 1 : replacement;
+               pointMutations[codon * 9 + naIndex * 3 + replacement] = (byte) ((codon & ~(0x03 << shift)) | (newNA << shift));
+            }
+         }
+      }
    }
 }
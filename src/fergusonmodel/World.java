@@ -4,31 +4,70 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Deque;
-import java.util.LinkedList;
+import stats.LineageStats;
 import stats.PatchStats;
 import stats.SimulationInfo;
 import stats.StatsWriter;
 import stats.StrainStats;
+import util.CounterRandom;
 import util.LinkedHashMap;
+import util.IntList;
 import util.LinkedHashSet;
+import util.RandomSource;
 
 public class World {
 
+   //Random_Counter streams are keyed by a host (or NO_STREAM) and one of these
+   public static final int NO_STREAM = -1;
+   public static final int PURPOSE_MUTATION_GAP = 0;
+   public static final int PURPOSE_MUTATION = 1;
+   public static final int PURPOSE_EXPOSURE = 2;
+   public static final int PURPOSE_INFECTION = 3;
+   public static final int PURPOSE_SETUP = 4;
+   public static final int PURPOSE_HASH = 5;
+   //Set to a number of days to cross-check the sick count against a scan of every host that often (for debugging)
+   public static final String VERIFY_PROPERTY = "verifyDays";
+
    public World() {
       //Initial variable values
       date = 0;
-      knownStrains = new LinkedHashMap<>();
+      hosts = new HostStore(Main.simulationInfo);
+      knownStrains = new InfectionIndex(hosts, Main.simulationInfo.strainAlgorithm == SimulationInfo.Algorithm.Strain_Interned);
+      potentialInfections = new IntList();
+      newInfections = new IntList();
+      oldInfections = new IntList();
+      lastRecoveredHosts = new IntList();
+      mutatedHosts = new IntList();
+      sites = Strain.NewSites();
+      newStrains = new ArrayList<>();
+      extinctStrains = new ArrayList<>();
+      lineageStats = new ArrayList<>();
+      recoveredHosts = new IntList();
+      dueSick = new IntList[Main.simulationInfo.numPatches];
+      for (int i = 0; i < dueSick.length; i++) {
+         dueSick[i] = new IntList();
+      }
+      dueCursors = new int[Main.simulationInfo.numPatches];
+      infectiousWheel = new IntList[WHEEL_DAYS];
+      recoveryWheel = new IntList[WHEEL_DAYS];
+      for (int i = 0; i < WHEEL_DAYS; i++) {
+         infectiousWheel[i] = new IntList();
+         recoveryWheel[i] = new IntList();
+      }
+      localExposure = Main.KERNEL.GetLocalExposure();
+      mutation = Main.KERNEL.GetMutation();
+      connectivity = Main.KERNEL.GetConnectivity();
       patches = new Patch[Main.simulationInfo.numPatches];
-      //Initialize the patches
+      //Initialize the patches (the first one loads the shared neighborhood map)
       for (int i = 0; i < patches.length; i++) {
-         if (i == 0) {
-            //Allocate and load a new neighborhood map
-            patches[i] = new Patch(Main.simulationInfo, i, null);
-         } else {
-            //Resuse the existing neighborhood map
-            patches[i] = new Patch(Main.simulationInfo, i, patches[0].hosts);
-         }
+         patches[i] = new Patch(Main.simulationInfo, i, hosts);
+      }
+      if (Main.simulationInfo.engineAlgorithm == SimulationInfo.Algorithm.Engine_Parallel) {
+         parallelEngine = new ParallelEngine(this);
+      }
+      verifyDays = Integer.getInteger(VERIFY_PROPERTY, 0);
+      if (verifyDays > 0) {
+         Main.Print("Verifying the sick count every %d days", verifyDays);
       }
    }
 
@@ -50,36 +89,76 @@ public class World {
       }
    }
 
-   public static double GetInfectionProbability(World world, Host host, Strain strain) {
-      double a = 1;
-      double b = 1;
-      if (host.lastInfectionDate != Integer.MIN_VALUE) {
-         a = 1 - Main.simulationInfo.omega * Math.exp(-(world.date - host.lastInfectionDate) / Main.simulationInfo.tau);
-         b = 1 - GetCrossProtection(host.GetImmunityDistance(strain));
+   public static double GetWaningSusceptibility(int days) {
+      return 1 - Main.simulationInfo.omega * Math.exp(-days / Main.simulationInfo.tau);
+   }
+
+   //Uses the tables from Main.InitializeProbabilities
+   public static double GetInfectionProbability(World world, int host, Strain strain) {
+      int lastInfectionDate = world.hosts.lastInfectionDate[host];
+      if (lastInfectionDate == HostStore.NEVER_INFECTED) {
+         //Naive hosts have no immunity
+         return 1;
+      }
+      int days = world.date - lastInfectionDate;
+      double a;
+      if (days < Main.SUSCEPTIBILITY_WANING.length) {
+         a = Main.SUSCEPTIBILITY_WANING[days];
+      } else if (Main.SUSCEPTIBILITY_WANING_SATURATED) {
+         a = 1;
+      } else {
+         a = GetWaningSusceptibility(days);
       }
+      double b = Main.SUSCEPTIBILITY_DISTANCE[world.hosts.GetImmunityDistance(host, strain)];
       return a * b;
    }
 
    public void Update() {
+      switch (Main.simulationInfo.engineAlgorithm) {
+         case Engine_Sequential:
+            UpdateSequential();
+            break;
+         case Engine_Parallel:
+            parallelEngine.Update();
+            break;
+         default:
+            throw new RuntimeException("Invalid engine algorithm: " + Main.simulationInfo.engineAlgorithm);
+      }
+      if (verifyDays > 0 && date % verifyDays == 0) {
+         VerifySickCount();
+      }
+   }
+
+   protected void UpdateSequential() {
       ++date;
-      //Happy Birthday
+      hosts.SetDate(date);
+      //Happy Birthday - reset everyone who isn't sick, patch by patch, and set aside the sick hosts
       long totalSick = GetTotalSick();
-      for (int i = (date - 1) % Main.simulationInfo.hostLifespan; i < patches[0].hosts.length; i += Main.simulationInfo.hostLifespan) {
-         for (Patch patch : patches) {
-            Host host = patch.hosts[i];
-            //See if this host was sick yesterday (the sick count is up-to-date as of the end of yesterday)
-            boolean wasSick = host.IsSick(date - 1);
-            //Don't let all sick hosts be reset
-            if (!wasSick || totalSick > Main.simulationInfo.minCarriers) {
-               //Pointer cleanup
-               if (host.lastInfectionStrain != null && knownStrains.Contains(host.lastInfectionStrain)) {
-                  knownStrains.Get(host.lastInfectionStrain).Remove(host);
-               }
-               //Update the sick count
-               if (wasSick) {
-                  --totalSick;
+      int numDueSick = 0;
+      for (Patch patch : patches) {
+         ResetBirthdays(patch, dueSick[patch.id]);
+         numDueSick += dueSick[patch.id].GetSize();
+      }
+      //Don't let all sick hosts be reset
+      long quota = Math.max(0, totalSick - Main.simulationInfo.minCarriers);
+      if (numDueSick <= quota) {
+         for (IntList due : dueSick) {
+            for (int i = 0; i < due.GetSize(); i++) {
+               ResetSick(due.Get(i));
+            }
+         }
+      } else {
+         //Not enough to go around, so the quota goes to the sick hosts in birthday order (by ID, then by patch)
+         for (int p = 0; p < dueCursors.length; p++) {
+            dueCursors[p] = 0;
+         }
+         for (int i = (date - 1) % Main.simulationInfo.hostLifespan; i < hosts.hostsPerPatch && quota > 0; i += Main.simulationInfo.hostLifespan) {
+            for (int p = 0; p < patches.length && quota > 0; p++) {
+               IntList due = dueSick[p];
+               if (dueCursors[p] < due.GetSize() && due.Get(dueCursors[p]) == patches[p].firstHost + i) {
+                  ResetSick(due.Get(dueCursors[p]++));
+                  --quota;
                }
-               host.Reset();
             }
          }
       }
@@ -88,340 +167,413 @@ public class World {
          patch.stats.incidence = 0;
       }
       //Reset daily strain stats
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = knownStrains.GetRoot(); element != null; element = element.next) {
-         Strain strain = element.key;
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
          strain.stats.incidence = 0;
       }
       //Mutate the virus in each infected host for this day
-      LinkedHashMap<Strain, LinkedHashSet<Host>> newStrains = new LinkedHashMap<>();
-      Deque<Host> oldInfections = new LinkedList<>();
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = knownStrains.GetRoot(); element != null; element = element.next) {
-         Strain strain = element.key;
-         oldInfections.clear();
-         for (LinkedHashSet.MapElement<Host> element2 = knownStrains.Get(strain).GetRoot(); element2 != null; element2 = element2.next) {
-            Host infectedHost = element2.key;
+      mutatedHosts.Clear();
+      newStrains.clear();
+      lineageStats.clear();
+      GenotypeTable genotypes = knownStrains.GetGenotypes();
+      RandomSource random = GetRandom();
+      //The number of hosts to pass over before the next one that's replicated
+      Seek(random, NO_STREAM, PURPOSE_MUTATION_GAP, 0);
+      long skip = mutation.DrawGap(random);
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
+         if (skip >= knownStrains.GetSize(strain)) {
+            //None of this strain's hosts mutate
+            skip -= knownStrains.GetSize(strain);
+            continue;
+         }
+         int infectedHost = knownStrains.GetFirstHost(strain);
+         while (infectedHost != InfectionIndex.NONE) {
+            int nextHost = knownStrains.GetNextHost(infectedHost);
+            if (skip > 0) {
+               --skip;
+               infectedHost = nextHost;
+               continue;
+            }
+            Seek(random, infectedHost, PURPOSE_MUTATION_GAP, 0);
+            skip = mutation.DrawGap(random);
             //Replicate the virus
-            Strain newStrain = infectedHost.lastInfectionStrain.Replicate(date);
-            if (newStrain != infectedHost.lastInfectionStrain) {
+            Strain lastInfectionStrain = hosts.GetStrain(infectedHost);
+            Seek(random, infectedHost, PURPOSE_MUTATION, 0);
+            Strain newStrain = lastInfectionStrain.Replicate(date, random, true, genotypes, sites);
+            if (newStrain != lastInfectionStrain) {
                //The virus has mutated
-               oldInfections.addFirst(infectedHost);
-               infectedHost.Infect(infectedHost.lastInfectionDate, newStrain);
-               if (!newStrains.Contains(newStrain)) {
-                  newStrains.Put(newStrain, new LinkedHashSet<Host>());
+               if (genotypes != null) {
+                  if (genotypes.Get(newStrain.genomeLow, newStrain.genomeHigh) == newStrain) {
+                     RecordLineage(lastInfectionStrain, newStrain);
+                  } else {
+                     //Later mutations today can find the new strain before it's merged below
+                     genotypes.Put(newStrain);
+                  }
                }
-               newStrains.Get(newStrain).Add(infectedHost);
+               knownStrains.Remove(strain, infectedHost);
+               hosts.Infect(infectedHost, hosts.lastInfectionDate[infectedHost], newStrain);
+               mutatedHosts.Add(infectedHost);
+               newStrains.add(newStrain);
             }
+            infectedHost = nextHost;
          }
-         knownStrains.Get(strain).RemoveAll(oldInfections);
-      }
-      //Merge new strains with existing strains
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = newStrains.GetRoot(); element != null; element = element.next) {
-         Strain newStrain = element.key;
-         knownStrains.Put(newStrain, newStrains.Get(newStrain));
-      }
-      //Infect
-      Deque<Host> lastRecoveredHosts = new LinkedList<>();
-      Deque<Strain> extinctStrains = new LinkedList<>();
-      Deque<Host> newInfections = new LinkedList<>();
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = knownStrains.GetRoot(); element != null; element = element.next) {
-         Strain strain = element.key;
-         newInfections.clear();
-         oldInfections.clear();
-         for (LinkedHashSet.MapElement<Host> element2 = knownStrains.Get(strain).GetRoot(); element2 != null; element2 = element2.next) {
-            Host infectedHost = element2.key;
-            if (!infectedHost.IsInfectious(date)) {
-               if (!infectedHost.IsIncubating(date)) {
-                  oldInfections.addFirst(infectedHost);
+      }
+      //Merge new strains with existing strains (added backwards so the first new strain ends up in front)
+      for (int i = newStrains.size() - 1; i >= 0; i--) {
+         Strain newStrain = newStrains.get(i);
+         //With Strain_Interned, the strain may already be in the index
+         if (!knownStrains.Contains(newStrain)) {
+            knownStrains.AddStrain(newStrain);
+         }
+         knownStrains.Add(newStrain, mutatedHosts.Get(i));
+      }
+      RunTransitions();
+      //Infect - only the infectious lists are walked, since incubating hosts don't spread the virus. The only
+      //hosts in them that aren't infectious are the ones that were reinfected earlier in the loop (incubating
+      //again) and the ones that recover today, if RunTransitions left them in the index.
+      lastRecoveredHosts.Clear();
+      extinctStrains.clear();
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
+         newInfections.Clear();
+         oldInfections.Clear();
+         for (int infectedHost = knownStrains.GetFirstInfectious(strain); infectedHost != InfectionIndex.NONE; infectedHost = knownStrains.GetNextInfectious(infectedHost)) {
+            if (!hosts.IsInfectious(infectedHost, date)) {
+               if (!hosts.IsIncubating(infectedHost, date)) {
+                  oldInfections.Add(infectedHost);
                }
                continue;
             }
             //Calculate how many people this person will infect today
-            ArrayList<Host> potentialInfections = new ArrayList<>();
+            potentialInfections.Clear();
             //Find out where this host lives, for seasonality purposes
-            int deme = 0;
-            switch (Main.simulationInfo.connectivityAlgorithm) {
-               case Connectivity_Flat:
-               case Connectivity_Cylindrical:
-                  if (infectedHost.patchID >= patches.length / 2) {
-                     //Southern hemisphere
-                     deme = 2;
-                  } else {
-                     //Northern hemisphere
-                     deme = 0;
-                  }
-                  break;
-               case Connectivity_Tropics:
-                  if (infectedHost.patchID < patches.length * 4 / 10) {
-                     //North
-                     deme = 0;
-                  } else if (infectedHost.patchID < patches.length * 9 / 10) {
-                     //Tropics
-                     deme = 1;
-                  } else {
-                     //South
-                     deme = 2;
-                  }
-                  break;
-               default:
-                  throw new RuntimeException("Invalid connectivity algorithm: " + Main.simulationInfo.connectivityAlgorithm);
-            }
-            //Get the day of the year for seasonality
-            int dayOfYear;
-            if (deme == 0) {
-               //Standard seasonality for the north
-               dayOfYear = date % 365;
-            } else if (deme == 1) {
-               //There is no seasonality in the tropics (as if it were always April 1, using cosine)
-               dayOfYear = 365 / 4;
-            } else {
-               //Opposite seasonality for the south
-               dayOfYear = (date + 365 / 2) % 365;
-            }
-            //Exposures between patches - drawing from a poisson and sampling with replacement
-            int numGlobal = Main.DrawFromDistribution(Main.POISSON_GLOBAL[dayOfYear], Main.RANDOM.nextDouble());
-            int patchesPerRow = Main.simulationInfo.numPatches / 4;
-            for (int i = 0; i < numGlobal; i++) {
-               int patchID = Main.RANDOM.nextInt(patches.length - 1);
-               if (patchID >= infectedHost.patchID) {
-                  ++patchID;
-               }
-               boolean allowed = false;
-               switch (Main.simulationInfo.connectivityAlgorithm) {
-                  case Connectivity_Flat:
-                  case Connectivity_Tropics:
-                     //Allow the infection to spread to any other patch
-                     allowed = true;
-                     break;
-                  case Connectivity_Cylindrical:
-                     //Only allow the infection to spread to neighboring patches
-                     int row1 = infectedHost.patchID / patchesPerRow;
-                     int col1 = infectedHost.patchID % patchesPerRow;
-                     int row2 = patchID / patchesPerRow;
-                     int col2 = patchID % patchesPerRow;
-                     //See if the patches are neighbors
-                     if (col1 == col2 && Math.abs(row1 - row2) == 1) {
-                        allowed = true;
-                     } else if (row1 == row2) {
-                        int delta = (patchesPerRow + (col1 - col2)) % patchesPerRow;
-                        if (delta == 1 || delta == patchesPerRow - 1) {
-                           allowed = true;
-                        }
-                     }
-                     break;
-                  default:
-                     throw new RuntimeException("Invalid connectivity algorithm: " + Main.simulationInfo.connectivityAlgorithm);
-               }
-               if (allowed) {
-                  int hostID = Main.RANDOM.nextInt(patches[patchID].hosts.length);
-                  potentialInfections.add(patches[patchID].hosts[hostID]);
-               }
-            }
-            //Exposures within this patch - drawing from a poisson and sampling with replacement
-            int numPatch = Main.DrawFromDistribution(Main.POISSON_PATCH[dayOfYear], Main.RANDOM.nextDouble());
-            for (int i = 0; i < numPatch; i++) {
-               int patchID = infectedHost.patchID;
-               int hostID = Main.RANDOM.nextInt(patches[patchID].hosts.length);
-               potentialInfections.add(patches[patchID].hosts[hostID]);
-            }
-            //Exposures in the local neighborhood - algorithm is determined by Main.INFECTION_ALGORITHM
-            if (infectedHost.numNeighbors > 0) {
-               int numLocal = 0;
-               //First, calculate the number of neighbors that should be exposed
-               switch (Main.simulationInfo.infectionAlgorithm) {
-                  case Infection_Exact:
-                     //Nothing to do here
-                     break;
-                  case Infection_Approximate1:
-                     //As an optimization, just draw the number of neighbors to expose from a poisson
-                     numLocal = Main.DrawFromDistribution(Main.POISSON_LOCAL[dayOfYear], Main.RANDOM.nextDouble());
-                     break;
-                  case Infection_Approximate2:
-                  case Infection_Approximate3:
-                     //This is a copy of Anuroop's implementation
-                     double temp = Main.INFECTION_LOCAL[dayOfYear] * infectedHost.numNeighbors;
-                     if (Main.RANDOM.nextDouble() < temp - (int) temp) {
-                        numLocal = (int) temp + 1;
-                     } else {
-                        numLocal = (int) temp;
-                     }
-                     break;
-                  default:
-                     throw new RuntimeException("Invalid infection algorithm: " + Main.simulationInfo.infectionAlgorithm);
-               }
-               //Next, sample the neighbors to expose
-               SimulationInfo.Algorithm infectionAlgorithm = Main.simulationInfo.infectionAlgorithm;
-               if (Main.simulationInfo.infectionAlgorithm == SimulationInfo.Algorithm.Infection_Approximate3 && numLocal <= 1) {
-                  //With just 1 (or 0) neighbor to expose, revert to sampling with replacement
-                  //It's more efficient, and the results are the exact same
-                  infectionAlgorithm = SimulationInfo.Algorithm.Infection_Approximate2;
-               }
-               switch (infectionAlgorithm) {
-                  case Infection_Exact:
-                     //Query each neighbor to see if they should be exposed
-                     double probability = Main.LOCAL_INFECTION_PROBABILITY;
-                     if (deme != 1) {
-                        //Take seasonality into account if this host isn't in the tropics
-                        //Using cosine so the peak is January 1
-                        probability *= (1 + Main.simulationInfo.seasonalityMultiplier * Math.cos((double) dayOfYear / 365.0 * Math.PI * 2.0));
-                     }
-                     //Try to expose all the neighbors
-                     for (int i = 0; i < infectedHost.numNeighbors; i++) {
-                        int neighborID = Host.neighborList[infectedHost.neighborIndex + i];
-                        if (Main.RANDOM.nextDouble() < probability) {
-                           potentialInfections.add(patches[infectedHost.patchID].hosts[neighborID]);
-                        }
-                     }
-                     break;
-                  case Infection_Approximate1:
-                  case Infection_Approximate2:
-                     //Sampling with replacement (fast, but can sample the same neighbor many times)
-                     for (int i = 0; i < numLocal; i++) {
-                        int neighborID = Host.neighborList[infectedHost.neighborIndex + Main.RANDOM.nextInt(infectedHost.numNeighbors)];
-                        potentialInfections.add(patches[infectedHost.patchID].hosts[neighborID]);
-                     }
-                     break;
-                  case Infection_Approximate3:
-                     //Sampling without replacement (using a copy of this host's neighbor list)
-                     ArrayList<Integer> neighborIDs = new ArrayList<>();
-                     for (int i = 0; i < infectedHost.numNeighbors; i++) {
-                        int neighborID = Host.neighborList[infectedHost.neighborIndex + i];
-                        neighborIDs.add(neighborID);
-                     }
-                     for (int i = 0; i < numLocal; i++) {
-                        potentialInfections.add(patches[infectedHost.patchID].hosts[neighborIDs.remove(Main.RANDOM.nextInt(neighborIDs.size()))]);
-                     }
-                     break;
-                  default:
-                     throw new RuntimeException("Invalid infection algorithm: " + Main.simulationInfo.infectionAlgorithm);
-               }
-            }
+            int infectedPatch = hosts.GetPatch(infectedHost);
+            Strain infectedStrain = hosts.GetStrain(infectedHost);
+            int deme = GetDeme(infectedPatch);
+            int dayOfYear = GetDayOfYear(deme);
+            Seek(random, infectedHost, PURPOSE_EXPOSURE, 0);
+            ExposeGlobal(infectedPatch, dayOfYear, random, potentialInfections);
+            ExposePatch(infectedPatch, dayOfYear, random, potentialInfections);
+            ExposeLocal(infectedHost, deme, dayOfYear, random, potentialInfections);
             //Attempt to infect everyone who was exposed above
-            for (Host host : potentialInfections) {
-               //There is a chance of immunity
-               double infectionProbability = GetInfectionProbability(this, host, infectedHost.lastInfectionStrain);
-               double d = Main.RANDOM.nextDouble();
-               if (d < infectionProbability) {
+            for (int i = 0; i < potentialInfections.GetSize(); i++) {
+               int host = potentialInfections.Get(i);
+               Strain lastInfectionStrain = hosts.GetStrain(host);
+               Seek(random, infectedHost, PURPOSE_INFECTION, i);
+               if (TryInfect(host, infectedStrain, random)) {
                   //Infected
-                  if (host.lastInfectionStrain != null && host.lastInfectionStrain != infectedHost.lastInfectionStrain) {
-                     if (knownStrains.Contains(host.lastInfectionStrain)) {
-                        knownStrains.Get(host.lastInfectionStrain).Remove(host);
-                     }
-                  }
-                  host.Infect(date, infectedHost.lastInfectionStrain);
-                  newInfections.addFirst(host);
-                  //Update incidence statistics for patches and strains
-                  patches[host.patchID].stats.incidence++;
-                  infectedHost.lastInfectionStrain.stats.incidence++;
-               } else {
-                  //Only exposed
-                  if (!host.IsIncubating(date) && !host.IsInfectious(date)) {
-                     if (host.lastInfectionDate != Integer.MIN_VALUE) {
-                        //Boost pre-existing immune responses
-                        host.lastInfectionDate = Math.max(host.lastInfectionDate, date - 6);
+                  if (lastInfectionStrain != null && lastInfectionStrain != infectedStrain) {
+                     if (knownStrains.Contains(lastInfectionStrain)) {
+                        knownStrains.Remove(lastInfectionStrain, host);
                      }
                   }
+                  newInfections.Add(host);
+                  //Update incidence statistics for strains
+                  infectedStrain.stats.incidence++;
                }
             }
          }
-         knownStrains.Get(strain).AddAll(newInfections);
-         knownStrains.Get(strain).RemoveAll(oldInfections);
-         for (Host host : oldInfections) {
-            lastRecoveredHosts.addFirst(host);
+         //The most recent infection ends up in back
+         for (int i = newInfections.GetSize() - 1; i >= 0; i--) {
+            knownStrains.Add(strain, newInfections.Get(i));
+            ScheduleTransitions(newInfections.Get(i));
+         }
+         //Recovered hosts are stored backwards, so this strain's come out in order when read from the end
+         for (int i = oldInfections.GetSize() - 1; i >= 0; i--) {
+            knownStrains.Remove(strain, oldInfections.Get(i));
+            lastRecoveredHosts.Add(oldInfections.Get(i));
          }
-         if (knownStrains.Get(strain).GetSize() == 0) {
-            extinctStrains.addFirst(strain);
+         if (knownStrains.GetSize(strain) == 0) {
+            extinctStrains.add(strain);
          }
       }
-      for (Strain strain : extinctStrains) {
-         knownStrains.Remove(strain);
+      for (int i = 0; i < extinctStrains.size(); i++) {
+         knownStrains.RemoveStrain(extinctStrains.get(i));
       }
       totalSick = GetTotalSick();
       if (totalSick < Main.simulationInfo.minCarriers) {
          //Roni - "Now introduce the following modification:  if the person about to recover will leave no one [in] state I (infectious) or state E (exposed), don't let them recover that day."
          //Me - Keeping a minimum viral reservoir of SimulationInfo.minCarriers
-         ArrayList<Host> lastRecoveredHostsList = new ArrayList<>();
-         lastRecoveredHostsList.addAll(lastRecoveredHosts);
-         int index = 0;
-         while (index < lastRecoveredHostsList.size() && totalSick < Main.simulationInfo.minCarriers) {
+         //The most recently recovered hosts are at the end of the list
+         int index = lastRecoveredHosts.GetSize() - 1;
+         while (index >= 0 && totalSick < Main.simulationInfo.minCarriers) {
             ++totalSick;
-            Host host = lastRecoveredHostsList.get(index++);
-            host.lastInfectionDate = date;
-            if (!knownStrains.Contains(host.lastInfectionStrain)) {
-               knownStrains.Put(host.lastInfectionStrain, new LinkedHashSet<Host>());
+            int host = lastRecoveredHosts.Get(index--);
+            Strain lastInfectionStrain = hosts.GetStrain(host);
+            hosts.SetLastInfectionDate(host, date);
+            if (!knownStrains.Contains(lastInfectionStrain)) {
+               knownStrains.AddStrain(lastInfectionStrain);
             }
-            knownStrains.Get(host.lastInfectionStrain).Add(host);
+            knownStrains.Add(lastInfectionStrain, host);
+            ScheduleTransitions(host);
          }
       }
       //Maybe Update Patch Stats
       if (Main.simulationInfo.patchStatsAlgorithm == SimulationInfo.Algorithm.PatchStats_All) {
          for (Patch patch : patches) {
-            patch.stats.naive = 0;
-            patch.stats.exposed = 0;
-            patch.stats.infectious = 0;
-            patch.stats.recovered = 0;
-            for (Host host : patch.hosts) {
-               if (host.lastInfectionDate == Integer.MIN_VALUE) {
-                  patch.stats.naive++;
-               } else if ((date - host.lastInfectionDate) < 2) {
-                  patch.stats.exposed++;
-               } else if ((date - host.lastInfectionDate) < 6) {
-                  patch.stats.infectious++;
-               } else {
-                  patch.stats.recovered++;
-               }
-            }
+            UpdatePatchStats(patch);
          }
       }
-      //Update strain stats
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = knownStrains.GetRoot(); element != null; element = element.next) {
-         Strain strain = element.key;
+      UpdateStrainStats();
+   }
+
+   //Resets the hosts in a patch whose birthday is today, except for the ones that were sick yesterday
+   //(the sick count is up-to-date as of the end of yesterday), which are put in dueSick in ID order for
+   //the caller to deal with. Naive hosts have nothing to reset, so they're passed over, and so is the
+   //whole patch if everyone in it is naive.
+   public void ResetBirthdays(Patch patch, IntList dueSick) {
+      dueSick.Clear();
+      if (hosts.GetNumNaive(patch.id) == patch.numHosts) {
+         return;
+      }
+      for (int i = (date - 1) % Main.simulationInfo.hostLifespan; i < patch.numHosts; i += Main.simulationInfo.hostLifespan) {
+         int host = patch.firstHost + i;
+         if (hosts.lastInfectionDate[host] == HostStore.NEVER_INFECTED) {
+            continue;
+         }
+         if (hosts.IsSick(host, date - 1)) {
+            dueSick.Add(host);
+         } else {
+            //Hosts that weren't sick yesterday aren't in the index, so they can be reset right away
+            hosts.Reset(host);
+         }
+      }
+   }
+
+   //Resets a host that was set aside by ResetBirthdays
+   public void ResetSick(int host) {
+      //Pointer cleanup
+      Strain lastInfectionStrain = hosts.GetStrain(host);
+      if (lastInfectionStrain != null && knownStrains.Contains(lastInfectionStrain)) {
+         knownStrains.Remove(lastInfectionStrain, host);
+      }
+      hosts.Reset(host);
+   }
+
+   //The generator for the daily update on a single thread
+   public RandomSource GetRandom() {
+      return Main.RANDOM;
+   }
+
+   //With Random_Counter, moves the generator to the stream for one of today's decisions, so the numbers
+   //drawn don't depend on the order decisions are made in. Otherwise, draws just continue the stream.
+   public void Seek(RandomSource random, int stream, int purpose, int block) {
+      if (random instanceof CounterRandom) {
+         ((CounterRandom) random).Seek(date, stream, purpose, block);
+      }
+   }
+
+   //Files a newly infected host (or one that was just added to knownStrains by some other means) under the
+   //days it becomes infectious and recovers on the wheels. Hosts that move to another strain when they
+   //mutate keep their infection date, so they don't need to be filed again.
+   public void ScheduleTransitions(int host) {
+      int lastInfectionDate = hosts.lastInfectionDate[host];
+      infectiousWheel[(lastInfectionDate + HostStore.INCUBATION_DAYS) & (WHEEL_DAYS - 1)].Add(host);
+      recoveryWheel[(lastInfectionDate + HostStore.INFECTION_DAYS) & (WHEEL_DAYS - 1)].Add(host);
+   }
+
+   //Pops today's buckets off the wheels (called by both engines, after the mutations are merged). Hosts that
+   //finish incubating today are moved into their strain's infectious list, and the hosts that recover today
+   //are put in recoveredHosts. Nobody can become sick again without being infected, so if enough hosts will
+   //still be sick after these recoveries, the minCarriers reservoir won't be needed today and the recovered
+   //hosts are dropped from the index. Otherwise they're left in the infectious lists for the engine to find
+   //in index order, which decides who is kept sick. Entries are stale (and skipped) if the host has since
+   //been reset, reinfected or kept sick.
+   public void RunTransitions() {
+      IntList bucket = infectiousWheel[date & (WHEEL_DAYS - 1)];
+      for (int i = 0; i < bucket.GetSize(); i++) {
+         int host = bucket.Get(i);
+         if (hosts.lastInfectionDate[host] == date - HostStore.INCUBATION_DAYS) {
+            knownStrains.MarkInfectious(host);
+         }
+      }
+      bucket.Clear();
+      recoveredHosts.Clear();
+      bucket = recoveryWheel[date & (WHEEL_DAYS - 1)];
+      for (int i = 0; i < bucket.GetSize(); i++) {
+         int host = bucket.Get(i);
+         if (knownStrains.Contains(host) && hosts.lastInfectionDate[host] == date - HostStore.INFECTION_DAYS) {
+            recoveredHosts.Add(host);
+         }
+      }
+      bucket.Clear();
+      if (GetTotalSick() - recoveredHosts.GetSize() >= Main.simulationInfo.minCarriers) {
+         for (int i = 0; i < recoveredHosts.GetSize(); i++) {
+            int host = recoveredHosts.Get(i);
+            knownStrains.Remove(hosts.GetStrain(host), host);
+         }
+      }
+   }
+
+   //Reads the SEIR compartments of a single patch from the counters kept by the HostStore
+   public void UpdatePatchStats(Patch patch) {
+      patch.stats.naive = hosts.GetNumNaive(patch.id);
+      patch.stats.exposed = hosts.GetNumExposed(patch.id);
+      patch.stats.infectious = hosts.GetNumInfectious(patch.id);
+      patch.stats.recovered = hosts.GetNumRecovered(patch.id);
+   }
+
+   public void UpdateStrainStats() {
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
          //Update strain stats for total infections
-         strain.stats.infected = knownStrains.Get(strain).GetSize();
+         strain.stats.infected = knownStrains.GetSize(strain);
          //Update strain stats for strain age
          strain.stats.age = date - strain.firstSeenDate;
       }
    }
 
+   //Find out where a patch is, for seasonality purposes (0=north, 1=tropics, 2=south)
+   public int GetDeme(int patchID) {
+      return connectivity.GetDeme(patchID);
+   }
+
+   //Get the day of the year for seasonality
+   public int GetDayOfYear(int deme) {
+      if (deme == 0) {
+         //Standard seasonality for the north
+         return date % 365;
+      } else if (deme == 1) {
+         //There is no seasonality in the tropics (as if it were always April 1, using cosine)
+         return 365 / 4;
+      } else {
+         //Opposite seasonality for the south
+         return (date + 365 / 2) % 365;
+      }
+   }
+
+   //Exposures between patches - drawing from a poisson and sampling with replacement
+   public void ExposeGlobal(int infectedPatch, int dayOfYear, RandomSource random, IntList exposures) {
+      int numGlobal = connectivity.GetExposureSampler(infectedPatch, dayOfYear).Draw(random.nextDouble());
+      for (int i = 0; i < numGlobal; i++) {
+         int patchID = connectivity.DrawDestination(infectedPatch, random);
+         if (patchID != Connectivity.NONE) {
+            int hostID = random.nextInt(patches[patchID].numHosts);
+            exposures.Add(patches[patchID].firstHost + hostID);
+         }
+      }
+   }
+
+   //Exposures within this patch - drawing from a poisson and sampling with replacement
+   public void ExposePatch(int infectedPatch, int dayOfYear, RandomSource random, IntList exposures) {
+      int numPatch = Main.POISSON_PATCH_SAMPLERS[dayOfYear].Draw(random.nextDouble());
+      for (int i = 0; i < numPatch; i++) {
+         int hostID = random.nextInt(patches[infectedPatch].numHosts);
+         exposures.Add(patches[infectedPatch].firstHost + hostID);
+      }
+   }
+
+   //Exposures in the local neighborhood - algorithm is determined by the kernel's LocalExposure
+   public void ExposeLocal(int infectedHost, int deme, int dayOfYear, RandomSource random, IntList exposures) {
+      int infectedID = hosts.GetID(infectedHost);
+      int firstHost = infectedHost - infectedID;
+      int numNeighbors = hosts.numNeighbors[infectedID];
+      int neighborIndex = hosts.neighborIndex[infectedID];
+      if (numNeighbors <= 0) {
+         return;
+      }
+      localExposure.Expose(firstHost, hosts.neighborList, neighborIndex, numNeighbors, deme, dayOfYear, random, exposures);
+   }
+
+   //Attempts to infect an exposed host, returning true if the host was infected. The
+   //caller is responsible for keeping knownStrains up to date.
+   public boolean TryInfect(int host, Strain strain, RandomSource random) {
+      //There is a chance of immunity
+      double infectionProbability = GetInfectionProbability(this, host, strain);
+      double d = random.nextDouble();
+      if (d < infectionProbability) {
+         //Infected
+         hosts.Infect(host, date, strain);
+         //Update incidence statistics for patches
+         patches[hosts.GetPatch(host)].stats.incidence++;
+         return true;
+      } else {
+         //Only exposed
+         if (!hosts.IsIncubating(host, date) && !hosts.IsInfectious(host, date)) {
+            if (hosts.lastInfectionDate[host] != HostStore.NEVER_INFECTED) {
+               //Boost pre-existing immune responses
+               hosts.SetLastInfectionDate(host, Math.max(hosts.lastInfectionDate[host], date - HostStore.INFECTION_DAYS));
+            }
+         }
+         return false;
+      }
+   }
+
+   //Records a mutation into a strain that was already circulating (Strain_Interned)
+   protected void RecordLineage(Strain parent, Strain child) {
+      lineageStats.add(new LineageStats(parent.stats.id, child.stats.id));
+   }
+
    public void UpdateStats(StatsWriter statsWriter, int pauseDate) throws IOException {
       PatchStats[] patchStats = new PatchStats[patches.length];
       for (int i = 0; i < patchStats.length; i++) {
          patchStats[i] = patches[i].stats;
       }
-      StrainStats[] strainStats = new StrainStats[knownStrains.GetSize()];
+      StrainStats[] strainStats = new StrainStats[knownStrains.GetNumStrains()];
       int index = 0;
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = knownStrains.GetRoot(); element != null; element = element.next) {
-         Strain strain = element.key;
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
          strainStats[index++] = strain.stats;
       }
-      statsWriter.SaveDay(date - pauseDate, patchStats, strainStats);
+      statsWriter.SaveDay(date - pauseDate, patchStats, strainStats, lineageStats.toArray(new LineageStats[lineageStats.size()]));
 //      Main.Print("%d-%d %08x %d", date, pauseDate, Main.RANDOM.nextInt(), GetTotalSick());
    }
 
+   //The number of hosts that are currently sick (kept up to date by knownStrains)
    public long GetTotalSick() {
-      long count = 0;
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = knownStrains.GetRoot(); element != null; element = element.next) {
-         Strain strain = element.key;
-         count += knownStrains.Get(strain).GetSize();
+      return knownStrains.GetTotalHosts();
+   }
+
+   //Folds every host's last infection (date and strain ID) and the next strain ID into one number, so
+   //two runs that ended in different states get different final state hashes
+   public long GetStateDigest() {
+      long digest = StrainStats.nextStrainID;
+      for (int host = 0; host < hosts.numHosts; host++) {
+         Strain strain = hosts.GetStrain(host);
+         digest = digest * 31 + hosts.lastInfectionDate[host];
+         digest = digest * 31 + (strain == null ? StrainStats.UNASSIGNED_ID : strain.stats.id);
+      }
+      return digest;
+   }
+
+   //Cross-checks the sick count against a scan of every host, throwing if they don't agree
+   public void VerifySickCount() {
+      knownStrains.Verify();
+      long totalSick = 0;
+      for (int host = 0; host < hosts.numHosts; host++) {
+         boolean sick = hosts.IsSick(host, date);
+         if (sick != knownStrains.Contains(host)) {
+            throw new RuntimeException(String.format("Day %d: host %d is %s, but it's %s the index", date, host, sick ? "sick" : "not sick", sick ? "not in" : "in"));
+         }
+         boolean infectious = sick && !hosts.IsIncubating(host, date);
+         if (infectious != knownStrains.IsMarkedInfectious(host)) {
+            throw new RuntimeException(String.format("Day %d: host %d is %s, but it's %s an infectious list", date, host, infectious ? "infectious" : "not infectious", infectious ? "not in" : "in"));
+         }
+         if (sick) {
+            ++totalSick;
+         }
+      }
+      if (totalSick != GetTotalSick()) {
+         throw new RuntimeException(String.format("Day %d: %d hosts are sick, but the sick count is %d", date, totalSick, GetTotalSick()));
+      }
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
+         for (int host = knownStrains.GetFirstHost(strain); host != InfectionIndex.NONE; host = knownStrains.GetNextHost(host)) {
+            if (hosts.GetStrain(host) != strain) {
+               throw new RuntimeException(String.format("Day %d: host %d is in the list of strain %d, but it's infected with another strain", date, host, strain.stats.id));
+            }
+         }
       }
-      return count;
    }
 
    public void SaveState(DataOutput out) throws IOException {
       out.writeInt(date);
       //Get a set of old strains
       LinkedHashSet<Strain> otherStrains = new LinkedHashSet<>();
-      for (int p = 0; p < Main.simulationInfo.numPatches; p++) {
-         for (int h = 0; h < Main.simulationInfo.hostsPerPatch; h++) {
-            Strain strain = patches[p].hosts[h].lastInfectionStrain;
-            if (strain != null && !knownStrains.Contains(strain)) {
-               otherStrains.Add(strain);
-            }
+      for (int host = 0; host < hosts.numHosts; host++) {
+         Strain strain = hosts.GetStrain(host);
+         if (strain != null && !knownStrains.Contains(strain)) {
+            otherStrains.Add(strain);
          }
       }
       //Save all strains here
-      out.writeInt(knownStrains.GetSize() + otherStrains.GetSize());
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> element = knownStrains.GetRoot(); element != null; element = element.next) {
-         Strain strain = element.key;
+      out.writeInt(knownStrains.GetNumStrains() + otherStrains.GetSize());
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
          strain.SaveState(out);
       }
       for (LinkedHashSet.MapElement<Strain> element = otherStrains.GetRoot(); element != null; element = element.next) {
@@ -432,22 +584,20 @@ public class World {
       for (int i = 0; i < patches.length; i++) {
          patches[i].SaveState(out);
       }
-      //With all strains and hosts saved, save the infection hash maps
-      out.writeInt(knownStrains.GetSize());
-      for (LinkedHashMap.MapElement<Strain, LinkedHashSet<Host>> strainElement = knownStrains.GetRoot(); strainElement != null; strainElement = strainElement.next) {
-         Strain strain = strainElement.key;
-         LinkedHashSet<Host> hostSet = strainElement.value;
+      //With all strains and hosts saved, save the infection index
+      out.writeInt(knownStrains.GetNumStrains());
+      for (Strain strain = knownStrains.GetFirstStrain(); strain != null; strain = knownStrains.GetNextStrain(strain)) {
          out.writeInt(strain.stats.id);
-         out.writeInt(hostSet.GetSize());
-         for (LinkedHashSet.MapElement<Host> hostElement = hostSet.GetRoot(); hostElement != null; hostElement = hostElement.next) {
-            Host host = hostElement.key;
-            out.writeInt(host.hashCode());
+         out.writeInt(knownStrains.GetSize(strain));
+         for (int host = knownStrains.GetFirstHost(strain); host != InfectionIndex.NONE; host = knownStrains.GetNextHost(host)) {
+            out.writeInt(hosts.GetSaveID(host));
          }
       }
    }
 
    public void LoadState(DataInput in) throws IOException {
       date = in.readInt();
+      hosts.SetDate(date);
       //Load all strains here
       int numStrains = in.readInt();
       LinkedHashMap<Integer, Strain> strains = new LinkedHashMap<>();
@@ -459,28 +609,56 @@ public class World {
       for (int i = 0; i < patches.length; i++) {
          patches[i].LoadState(in, strains);
       }
-      //With all strains and hosts loaded, load the infection hash maps
+      //With all strains and hosts loaded, load the infection index
       int num = in.readInt();
+      Strain[] indexStrains = new Strain[num];
+      IntList[] indexHosts = new IntList[num];
       for (int i = 0; i < num; i++) {
          int strainID = in.readInt();
-         Strain strain = strains.Get(strainID);
+         indexStrains[i] = strains.Get(strainID);
          int numHosts = in.readInt();
-         LinkedHashSet<Host> hosts = new LinkedHashSet<>();
+         indexHosts[i] = new IntList(numHosts);
          for (int j = 0; j < numHosts; j++) {
-            int id = in.readInt();
-            int patchID = (id >> 24) & 0xFF;
-            int hostID = id & 0xFFFFFF;
-            Host host = patches[patchID].hosts[hostID];
-            hosts.Add(host);
+            indexHosts[i].Add(hosts.GetHostFromSaveID(in.readInt()));
+         }
+      }
+      //Everything is added to the front of the index, so add it backwards to keep the saved order
+      for (int i = num - 1; i >= 0; i--) {
+         knownStrains.AddStrain(indexStrains[i]);
+         for (int j = indexHosts[i].GetSize() - 1; j >= 0; j--) {
+            knownStrains.Add(indexStrains[i], indexHosts[i].Get(j));
+            ScheduleTransitions(indexHosts[i].Get(j));
          }
-         //Saved and loaded as a stack, so the entries all backwards now
-         hosts.Reverse();
-         knownStrains.Put(strain, hosts);
       }
-      //Saved and loaded as a stack, so the entries all backwards now
-      knownStrains.Reverse();
    }
    protected Patch[] patches;
+   protected HostStore hosts;
    protected int date;
-   protected LinkedHashMap<Strain, LinkedHashSet<Host>> knownStrains;
+   protected InfectionIndex knownStrains;
+   protected ParallelEngine parallelEngine;
+   protected LocalExposure localExposure;
+   protected Mutation mutation;
+   protected Connectivity connectivity;
+   //How often VerifySickCount is called (0 to never call it)
+   protected int verifyDays;
+   //Scratch space for UpdateSequential, reused every day so the daily update doesn't allocate
+   protected IntList potentialInfections;
+   protected IntList newInfections;
+   protected IntList oldInfections;
+   protected IntList lastRecoveredHosts;
+   protected IntList mutatedHosts;
+   protected int[] sites;
+   protected ArrayList<Strain> newStrains;
+   protected ArrayList<Strain> extinctStrains;
+   protected IntList recoveredHosts;
+   //Sick hosts whose birthday is today, by patch (and how far each patch's list has been handed the quota)
+   protected IntList[] dueSick;
+   protected int[] dueCursors;
+   //Today's mutations into strains that were already circulating (Strain_Interned)
+   protected ArrayList<LineageStats> lineageStats;
+   //Hosts in knownStrains, bucketed by the day they become infectious and the day they recover (mod WHEEL_DAYS)
+   protected IntList[] infectiousWheel;
+   protected IntList[] recoveryWheel;
+   //A power of 2 that's longer than an infection
+   protected static final int WHEEL_DAYS = 8;
 }
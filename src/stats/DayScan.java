@@ -0,0 +1,160 @@
+package stats;
+
+import util.IntList;
+
+/*
+ * An aggregate over a range of days in a stats file (see StatsReader.Scan). The
+ * range is split into parts that are scanned in parallel, each into its own
+ * accumulator (one day at a time, in order), and then the accumulators of
+ * neighboring parts are combined in day order. So as long as Combine agrees
+ * with Visit, the result doesn't depend on how the range was split up.
+ */
+public abstract class DayScan<T> {
+
+   //A new accumulator, for a part of the range before any of its days are visited
+   public abstract T CreateAccumulator();
+
+   //Adds a day to an accumulator (the view is only valid until Visit returns)
+   public abstract void Visit(DayView day, T accumulator);
+
+   //Combines the accumulators of two neighboring parts of the range (first comes before second)
+   public abstract T Combine(T first, T second);
+
+   //The sum of one of the patch counters (DayView.NAIVE, ...) over the days, by patch
+   public static class PatchTotals extends DayScan<long[]> {
+
+      public PatchTotals(int numPatches, int counter) {
+         this.numPatches = numPatches;
+         this.counter = counter;
+      }
+
+      @Override
+      public long[] CreateAccumulator() {
+         return new long[numPatches];
+      }
+
+      @Override
+      public void Visit(DayView day, long[] totals) {
+         for (int p = 0; p < numPatches; p++) {
+            totals[p] += day.GetPatchCounter(p, counter);
+         }
+      }
+
+      @Override
+      public long[] Combine(long[] first, long[] second) {
+         for (int p = 0; p < numPatches; p++) {
+            first[p] += second[p];
+         }
+         return first;
+      }
+      protected int numPatches;
+      protected int counter;
+   }
+
+   //The largest value of one of the patch counters, and the first day it was reached, by patch
+   public static class PatchPeaks extends DayScan<PatchPeaks.Peaks> {
+
+      public static class Peaks {
+
+         public Peaks(int numPatches) {
+            values = new int[numPatches];
+            days = new int[numPatches];
+            for (int p = 0; p < numPatches; p++) {
+               values[p] = Integer.MIN_VALUE;
+               days[p] = -1;
+            }
+         }
+         public int[] values;
+         public int[] days;
+      }
+
+      public PatchPeaks(int numPatches, int counter) {
+         this.numPatches = numPatches;
+         this.counter = counter;
+      }
+
+      @Override
+      public Peaks CreateAccumulator() {
+         return new Peaks(numPatches);
+      }
+
+      @Override
+      public void Visit(DayView day, Peaks peaks) {
+         for (int p = 0; p < numPatches; p++) {
+            int value = day.GetPatchCounter(p, counter);
+            if (value > peaks.values[p]) {
+               peaks.values[p] = value;
+               peaks.days[p] = day.GetDay();
+            }
+         }
+      }
+
+      @Override
+      public Peaks Combine(Peaks first, Peaks second) {
+         //Ties go to the earlier day
+         for (int p = 0; p < numPatches; p++) {
+            if (second.values[p] > first.values[p]) {
+               first.values[p] = second.values[p];
+               first.days[p] = second.days[p];
+            }
+         }
+         return first;
+      }
+      protected int numPatches;
+      protected int counter;
+   }
+
+   //One of the patch counters on every day (values[patch].Get(day - firstDay)), by patch
+   public static class PatchSeries extends DayScan<PatchSeries.Series> {
+
+      public static class Series {
+
+         public Series(int numPatches) {
+            firstDay = -1;
+            values = new IntList[numPatches];
+            for (int p = 0; p < numPatches; p++) {
+               values[p] = new IntList();
+            }
+         }
+         //The first day in the series (-1 if it's empty)
+         public int firstDay;
+         public IntList[] values;
+      }
+
+      public PatchSeries(int numPatches, int counter) {
+         this.numPatches = numPatches;
+         this.counter = counter;
+      }
+
+      @Override
+      public Series CreateAccumulator() {
+         return new Series(numPatches);
+      }
+
+      @Override
+      public void Visit(DayView day, Series series) {
+         if (series.firstDay == -1) {
+            series.firstDay = day.GetDay();
+         }
+         for (int p = 0; p < numPatches; p++) {
+            series.values[p].Add(day.GetPatchCounter(p, counter));
+         }
+      }
+
+      @Override
+      public Series Combine(Series first, Series second) {
+         if (first.firstDay == -1) {
+            return second;
+         }
+         for (int p = 0; p < numPatches; p++) {
+            IntList values = second.values[p];
+            for (int i = 0; i < values.GetSize(); i++) {
+               first.values[p].Add(values.Get(i));
+            }
+         }
+         return first;
+      }
+      protected int numPatches;
+      protected int counter;
+   }
+}
@@ -0,0 +1,182 @@
+package stats;
+
+import java.nio.ByteBuffer;
+import util.IntList;
+
+/*
+ * One day of a stats file, read straight out of the reader's mapped file (see
+ * StatsReader.View). Nothing is copied or allocated when a view is pointed at a
+ * day - the counters are read whenever they're asked for, and the strings are
+ * only decoded if they're asked for. Strains are identified by their index in
+ * the day (0 to GetNumStrains() - 1), not by their ID.
+ *
+ * A view can be pointed at any number of days, but it's only meant to be used
+ * by one thread at a time.
+ */
+public class DayView {
+
+   public int GetDay() {
+      return day;
+   }
+
+   public int GetNumPatches() {
+      return numPatches;
+   }
+
+   public int GetNaive(int patch) {
+      return GetPatchCounter(patch, NAIVE);
+   }
+
+   public int GetExposed(int patch) {
+      return GetPatchCounter(patch, EXPOSED);
+   }
+
+   public int GetInfectious(int patch) {
+      return GetPatchCounter(patch, INFECTIOUS);
+   }
+
+   public int GetRecovered(int patch) {
+      return GetPatchCounter(patch, RECOVERED);
+   }
+
+   public int GetIncidence(int patch) {
+      return GetPatchCounter(patch, INCIDENCE);
+   }
+
+   public int GetNumStrains() {
+      return numStrains;
+   }
+
+   public int GetStrainID(int index) {
+      return columns ? data.getInt(strainOffset + 4 * index) : data.getInt(rowOffsets.Get(index));
+   }
+
+   public int GetParentID(int index) {
+      return columns ? GetEntry(index).parentID : data.getInt(rowOffsets.Get(index) + 4);
+   }
+
+   public int GetInfected(int index) {
+      return columns ? data.getInt(strainOffset + 4 * (numStrains + index)) : data.getInt(rowOffsets.Get(index) + 8);
+   }
+
+   public int GetStrainIncidence(int index) {
+      return columns ? data.getInt(strainOffset + 4 * (2 * numStrains + index)) : data.getInt(rowOffsets.Get(index) + 12);
+   }
+
+   public int GetMutations(int index) {
+      return columns ? GetEntry(index).mutations : data.getInt(rowOffsets.Get(index) + 16);
+   }
+
+   public int GetAge(int index) {
+      return columns ? day - GetEntry(index).firstSeenDay : data.getInt(rowOffsets.Get(index) + 20);
+   }
+
+   public String GetRNA(int index) {
+      return columns ? GetEntry(index).GetRNA() : StatsReader.GetUTF(data, stringOffsets.Get(index));
+   }
+
+   public String GetProtein(int index) {
+      return columns ? GetEntry(index).GetProtein() : StatsReader.GetUTF(data, StatsReader.SkipUTF(data, stringOffsets.Get(index)));
+   }
+
+   //Lineage stats are only saved with Strain_Interned (there are none otherwise)
+   public int GetNumLineages() {
+      return numLineages;
+   }
+
+   public int GetLineageParentID(int index) {
+      return columns ? data.getInt(lineageOffset + 4 * index) : data.getInt(lineageOffset + 8 * index);
+   }
+
+   public int GetLineageChildID(int index) {
+      return columns ? data.getInt(lineageOffset + 4 * (numLineages + index)) : data.getInt(lineageOffset + 8 * index + 4);
+   }
+
+   //Copies, for code that needs stats objects
+   public PatchStats GetPatchStats(int patch) {
+      return new PatchStats(GetNaive(patch), GetExposed(patch), GetInfectious(patch), GetRecovered(patch), GetIncidence(patch));
+   }
+
+   public StrainStats GetStrainStats(int index) {
+      return new StrainStats(GetRNA(index), GetProtein(index), GetStrainID(index), GetParentID(index), GetInfected(index), GetStrainIncidence(index), GetMutations(index), GetAge(index));
+   }
+
+   public LineageStats GetLineageStats(int index) {
+      return new LineageStats(GetLineageParentID(index), GetLineageChildID(index));
+   }
+
+   //Counters are numbered in the order they're saved (NAIVE, EXPOSED, INFECTIOUS, RECOVERED, INCIDENCE)
+   public int GetPatchCounter(int patch, int counter) {
+      return columns ? data.getInt(patchOffset + 4 * (counter * numPatches + patch)) : data.getInt(patchOffset + 4 * (patch * 5 + counter));
+   }
+
+   protected StatsReader.DictionaryEntry GetEntry(int index) {
+      return reader.GetDictionaryEntry(GetStrainID(index));
+   }
+
+   //Points the view at a day that starts at the given offset in the data (called by StatsReader.View)
+   protected void Set(StatsReader reader, int day, ByteBuffer data, int offset) {
+      this.reader = reader;
+      this.day = day;
+      this.data = data;
+      numPatches = reader.simulationInfo.numPatches;
+      columns = reader.majorVersion >= 6;
+      boolean lineages = reader.simulationInfo.strainAlgorithm == SimulationInfo.Algorithm.Strain_Interned;
+      if (columns) {
+         //Skip the dictionary (the reader has already loaded it)
+         int numEntries = data.getInt(offset);
+         offset += 4;
+         for (int i = 0; i < numEntries; i++) {
+            offset = StatsReader.SkipUTF(data, StatsReader.SkipUTF(data, offset + 16));
+         }
+         patchOffset = offset;
+         offset += 4 * 5 * numPatches;
+         numStrains = data.getInt(offset);
+         strainOffset = offset + 4;
+         offset = strainOffset + 4 * 3 * numStrains;
+      } else {
+         //Each strain's strings are a different length, so find where every row starts
+         patchOffset = offset;
+         offset += 4 * 5 * numPatches;
+         numStrains = data.getInt(offset);
+         offset += 4;
+         if (stringOffsets == null) {
+            stringOffsets = new IntList();
+            rowOffsets = new IntList();
+         }
+         stringOffsets.Clear();
+         rowOffsets.Clear();
+         for (int i = 0; i < numStrains; i++) {
+            stringOffsets.Add(offset);
+            offset = StatsReader.SkipUTF(data, StatsReader.SkipUTF(data, offset));
+            rowOffsets.Add(offset);
+            offset += 4 * 6;
+         }
+      }
+      numLineages = 0;
+      if (lineages) {
+         numLineages = data.getInt(offset);
+         lineageOffset = offset + 4;
+      }
+   }
+   public static final int NAIVE = 0;
+   public static final int EXPOSED = 1;
+   public static final int INFECTIOUS = 2;
+   public static final int RECOVERED = 3;
+   public static final int INCIDENCE = 4;
+   protected StatsReader reader;
+   protected int day;
+   //The mapped chunk of the file the day is in
+   protected ByteBuffer data;
+   //Whether the day is saved in columns (since 6.0) or rows
+   protected boolean columns;
+   protected int numPatches;
+   protected int patchOffset;
+   protected int numStrains;
+   protected int strainOffset;
+   protected int numLineages;
+   protected int lineageOffset;
+   //Before 6.0, where each strain's strings and the rest of its row start
+   protected IntList stringOffsets;
+   protected IntList rowOffsets;
+}
@@ -0,0 +1,14 @@
+package stats;
+
+//A mutation into a strain that was already circulating (Strain_Interned). The
+//strain's own parentID only records the mutation that first created it, so
+//these are saved alongside each day's strain stats to keep the full lineage.
+public class LineageStats {
+
+   public LineageStats(int parentID, int childID) {
+      this.parentID = parentID;
+      this.childID = childID;
+   }
+   public int parentID;
+   public int childID;
+}
@@ -52,7 +52,54 @@ public class SimulationInfo {
       Connectivity_Cylindrical(11),
       //Patches are split into 3 demes: north, tropics, south (4:5:1 ratio)
       //Patches have the Connectivity_Flat contact rate
-      Connectivity_Tropics(12);
+      Connectivity_Tropics(12),
+      //Update the world one patch at a time, on a single thread, using the global RNG
+      //This is how every simulation before 2.0 was run
+      Engine_Sequential(13),
+      //Update patches in parallel, each with its own RNG stream
+      //Exposures between patches are buffered and applied at the end of the day, so
+      //results depend only on the seed (not on the number of threads)
+      Engine_Parallel(14),
+      //Every successful mutation creates a new strain, even if the genotype is already circulating
+      //This is how every simulation before 3.0 was run
+      Strain_Unique(15),
+      //Mutations into a genotype that's already circulating reuse the existing strain
+      //Keeps the number of strains (and the size of the stats file) down when mutation rates are high
+      Strain_Interned(16),
+      //Same distribution as Mutation_Exact, but instead of drawing for every host, the number of hosts
+      //until the next one that mutates is drawn from a geometric distribution
+      //Much faster with small mutation probabilities, since most hosts don't need any random numbers
+      Mutation_Geometric(17),
+      //Same distribution as Infection_Exact, but instead of drawing for every neighbor, the number of
+      //neighbors until the next one that's exposed is drawn from a geometric distribution
+      //Needs about R0_local / 4 random numbers per host instead of one per neighbor
+      Infection_ExactGeometric(18),
+      //Draw from the precalculated distributions by scanning the CDF from the start
+      //This is how every simulation before 4.0 was run
+      Sampler_Linear(19),
+      //Jump to the right part of the CDF with a guide table before scanning
+      //Exact same results as Sampler_Linear, but in (expected) constant time
+      Sampler_Guide(20),
+      //Draw from the precalculated distributions with alias tables
+      //Constant time, but each random number maps to a different value than with Sampler_Linear
+      Sampler_Alias(21),
+      //Patches are connected by a weighted graph, read from connectivity-<numPatches>.txt
+      //Patches are split into nothern and southern hemispheres unless the file says otherwise
+      Connectivity_File(22),
+      //The same layout and contact rate as Connectivity_Cylindrical, but exposures are only drawn
+      //for neighboring patches instead of being drawn for every patch and dropped for non-neighbors
+      Connectivity_CylindricalDirect(23),
+      //Draw the random numbers for the daily update from one sequential MersenneTwister stream (or one
+      //per patch with Engine_Parallel), so every draw depends on all the draws before it
+      //This is how every simulation before 5.0 was run
+      Random_MersenneTwister(24),
+      //Draw the random numbers for each decision (a host replicating, spreading, being exposed, ...)
+      //from a counter-based generator keyed by the date, the host and the decision, so the numbers
+      //drawn don't depend on the order hosts are visited in
+      Random_Counter(25),
+      //The same as Random_MersenneTwister, but with xoshiro256**, which is faster and has an unbiased
+      //nextInt(n) (Engine_Parallel splits the per-patch streams off by jumping ahead instead of reseeding)
+      Random_Xoshiro(26);
 
       Algorithm(int id) {
          //Could just use the ordinal value, but file compatibality would be broken if items were rearranged
@@ -73,7 +120,7 @@ public class SimulationInfo {
    public SimulationInfo() {
    }
 
-   public SimulationInfo(double theta0, double theta1, double nt, double omega, double tau, long randomSeed, double seasonalityMultiplier, double neighborhoodRadius, double mutationProbability, int numEpitopes, int codonsPerEpitope, int numPatches, int hostsPerPatch, int hostLifespan, double R0_local, double R0_patch, double R0_global, int numDays, int minCarriers, Algorithm infectionAlgorithm, Algorithm mutationAlgorithm, Algorithm patchStatsAlgorithm, Algorithm connectivityAlgorithm, boolean saveState) {
+   public SimulationInfo(double theta0, double theta1, double nt, double omega, double tau, long randomSeed, double seasonalityMultiplier, double neighborhoodRadius, double mutationProbability, int numEpitopes, int codonsPerEpitope, int numPatches, int hostsPerPatch, int hostLifespan, double R0_local, double R0_patch, double R0_global, int numDays, int minCarriers, Algorithm infectionAlgorithm, Algorithm mutationAlgorithm, Algorithm patchStatsAlgorithm, Algorithm connectivityAlgorithm, Algorithm engineAlgorithm, Algorithm strainAlgorithm, Algorithm samplerAlgorithm, Algorithm randomAlgorithm, boolean saveState) {
       this.theta0 = theta0;
       this.theta1 = theta1;
       this.nt = nt;
@@ -97,10 +144,18 @@ public class SimulationInfo {
       this.mutationAlgorithm = mutationAlgorithm;
       this.patchStatsAlgorithm = patchStatsAlgorithm;
       this.connectivityAlgorithm = connectivityAlgorithm;
+      this.engineAlgorithm = engineAlgorithm;
+      this.strainAlgorithm = strainAlgorithm;
+      this.samplerAlgorithm = samplerAlgorithm;
+      this.randomAlgorithm = randomAlgorithm;
       this.saveState = saveState;
    }
 
    public void Write(DataOutput output) throws IOException {
+      Write(output, Main.VERSION_MAJOR);
+   }
+
+   public void Write(DataOutput output, int majorVersion) throws IOException {
       output.writeDouble(theta0);
       output.writeDouble(theta1);
       output.writeDouble(nt);
@@ -125,6 +180,22 @@ public class SimulationInfo {
       output.writeByte(patchStatsAlgorithm.id);
       output.writeByte(connectivityAlgorithm.id);
       output.writeBoolean(saveState);
+      if (majorVersion >= 2) {
+         //engineAlgorithm introduced in 2.0
+         output.writeByte(engineAlgorithm.id);
+      }
+      if (majorVersion >= 3) {
+         //strainAlgorithm introduced in 3.0
+         output.writeByte(strainAlgorithm.id);
+      }
+      if (majorVersion >= 4) {
+         //samplerAlgorithm introduced in 4.0
+         output.writeByte(samplerAlgorithm.id);
+      }
+      if (majorVersion >= 5) {
+         //randomAlgorithm introduced in 5.0
+         output.writeByte(randomAlgorithm.id);
+      }
    }
 
    public static SimulationInfo Read(DataInput input, int majorVersion) throws IOException {
@@ -152,7 +223,27 @@ public class SimulationInfo {
       Algorithm patchStatsAlgorithm = Algorithm.Decode(input.readByte() & 0xFF);
       Algorithm connectivityAlgorithm = Algorithm.Decode(input.readByte() & 0xFF);
       boolean saveState = input.readBoolean();
-      return new SimulationInfo(theta0, theta1, nt, omega, tau, randomSeed, seasonalityMultiplier, neighborhoodRadius, mutationProbability, numEpitopes, codonsPerEpitope, numPatches, hostsPerPatch, hostLifespan, R0_local, R0_patch, R0_global, numDays, minCarriers, infectionAlgorithm, mutationAlgorithm, patchStatsAlgorithm, connectivityAlgorithm, saveState);
+      Algorithm engineAlgorithm = Algorithm.Engine_Sequential;
+      if (majorVersion >= 2) {
+         //engineAlgorithm introduced in 2.0
+         engineAlgorithm = Algorithm.Decode(input.readByte() & 0xFF);
+      }
+      Algorithm strainAlgorithm = Algorithm.Strain_Unique;
+      if (majorVersion >= 3) {
+         //strainAlgorithm introduced in 3.0
+         strainAlgorithm = Algorithm.Decode(input.readByte() & 0xFF);
+      }
+      Algorithm samplerAlgorithm = Algorithm.Sampler_Linear;
+      if (majorVersion >= 4) {
+         //samplerAlgorithm introduced in 4.0
+         samplerAlgorithm = Algorithm.Decode(input.readByte() & 0xFF);
+      }
+      Algorithm randomAlgorithm = Algorithm.Random_MersenneTwister;
+      if (majorVersion >= 5) {
+         //randomAlgorithm introduced in 5.0
+         randomAlgorithm = Algorithm.Decode(input.readByte() & 0xFF);
+      }
+      return new SimulationInfo(theta0, theta1, nt, omega, tau, randomSeed, seasonalityMultiplier, neighborhoodRadius, mutationProbability, numEpitopes, codonsPerEpitope, numPatches, hostsPerPatch, hostLifespan, R0_local, R0_patch, R0_global, numDays, minCarriers, infectionAlgorithm, mutationAlgorithm, patchStatsAlgorithm, connectivityAlgorithm, engineAlgorithm, strainAlgorithm, samplerAlgorithm, randomAlgorithm, saveState);
    }
 
    public void Print() {
@@ -180,6 +271,10 @@ public class SimulationInfo {
       Main.Print("mutationAlgorithm=" + mutationAlgorithm);
       Main.Print("patchStatsAlgorithm=" + patchStatsAlgorithm);
       Main.Print("connectivityAlgorithm=" + connectivityAlgorithm);
+      Main.Print("engineAlgorithm=" + engineAlgorithm);
+      Main.Print("strainAlgorithm=" + strainAlgorithm);
+      Main.Print("samplerAlgorithm=" + samplerAlgorithm);
+      Main.Print("randomAlgorithm=" + randomAlgorithm);
       Main.Print("saveState=" + saveState);
       Main.Print("=====-----------------------=====");
    }
@@ -225,10 +320,10 @@ public class SimulationInfo {
          DataInputStream dis = new DataInputStream(inflater);
          //Get the data format version
          int majorVersion = dis.read();
-         //Undo the XOR operation (with another XOR)
+         //Undo the XOR operation (with another XOR), using the layout of the string's version
          ByteArrayOutputStream baos = new ByteArrayOutputStream();
          DataOutputStream dos = new DataOutputStream(baos);
-         GetDefault().Write(dos);
+         GetDefault().Write(dos, majorVersion);
          dos.flush();
          byte[] reference = baos.toByteArray();
          byte[] bytes = new byte[reference.length];
@@ -245,7 +340,7 @@ public class SimulationInfo {
    }
 
    public static SimulationInfo GetDefault() {
-      return new SimulationInfo(.25, .99, 2, 1, 270, 0, .25, 4, 1e-6, 4, 3, 20, 5000000, 60 * 365, 5, .4, .02, 100 * 365, 1, Algorithm.Infection_Exact, Algorithm.Mutation_Exact, Algorithm.PatchStats_Incidence, Algorithm.Connectivity_Flat, false);
+      return new SimulationInfo(.25, .99, 2, 1, 270, 0, .25, 4, 1e-6, 4, 3, 20, 5000000, 60 * 365, 5, .4, .02, 100 * 365, 1, Algorithm.Infection_Exact, Algorithm.Mutation_Exact, Algorithm.PatchStats_Incidence, Algorithm.Connectivity_Flat, Algorithm.Engine_Sequential, Algorithm.Strain_Unique, Algorithm.Sampler_Guide, Algorithm.Random_MersenneTwister, false);
    }
    //========== Ferguson Parameters ==========
    //Long-term, specific immunity
@@ -288,6 +383,14 @@ public class SimulationInfo {
    public Algorithm mutationAlgorithm;
    //The connectivity of the patches
    public Algorithm connectivityAlgorithm;
+   //The algorithm to use when updating the world each day
+   public Algorithm engineAlgorithm;
+   //How strains are created when the virus mutates
+   public Algorithm strainAlgorithm;
+   //How values are drawn from the precalculated distributions
+   public Algorithm samplerAlgorithm;
+   //How random numbers are drawn during the daily update
+   public Algorithm randomAlgorithm;
    //========== My Trivial Parameters ==========
    //The algorithm to use when calculating daily patch stats
    public Algorithm patchStatsAlgorithm;
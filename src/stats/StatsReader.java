@@ -2,7 +2,23 @@ package stats;
 
 import fergusonmodel.Main;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import util.IntList;
+import util.Threads;
 
+/*
+ * Reads the stats file. The days are memory mapped in chunks of up to
+ * CHUNK_SIZE bytes (split between days, so every day is in a single chunk and
+ * files can be larger than a single mapping), and read through DayView, which
+ * reads the counters straight out of the mapping. ReadDay copies a day into
+ * stats objects, for code that needs them. Scan runs a DayScan over a range of
+ * days on a fork-join pool, so long ranges are read by all of the cores at once.
+ */
 public class StatsReader {
 
    public StatsReader(String filename) {
@@ -11,6 +27,7 @@ public class StatsReader {
 
    public void Initialize() throws IOException {
       raf = new RandomAccessFile(filename, "r");
+      channel = raf.getChannel();
       int version = raf.readInt();
       int majorVersion = (version >> 16) & 0xFFFF;
       //int minorVersion = version & 0xFFFF;
@@ -23,11 +40,22 @@ public class StatsReader {
             throw new IOException("Bad FILE_FORMAT_VERSION " + message);
          }
       }
+      this.majorVersion = majorVersion;
       simulationInfo = SimulationInfo.Read(raf, majorVersion);
       runtimeInfo = RuntimeInfo.Read(raf, majorVersion);
+      //Read the day offsets and the save state offset all at once
+      ByteBuffer table = ByteBuffer.allocate(8 * (simulationInfo.numDays + 1));
+      long tableOffset = raf.getFilePointer();
+      while (table.hasRemaining()) {
+         if (channel.read(table, tableOffset + table.position()) < 0) {
+            throw new EOFException("The stats file ends in the header");
+         }
+      }
+      table.flip();
       dayOffsets = new long[simulationInfo.numDays];
-      for (int i = 0; i < simulationInfo.numDays; i++) {
-         dayOffsets[i] = raf.readLong();
+      table.asLongBuffer().get(dayOffsets);
+      saveStateOffset = table.getLong(8 * simulationInfo.numDays);
+      for (int i = 0; i < dayOffsets.length; i++) {
          //Check to see if the offset is defined. It's ok if it's not because it
          //is nice to be able to analyze the stats file while the simulation is
          //still running. If this happens on a completed stats file, then
@@ -39,21 +67,192 @@ public class StatsReader {
             break;
          }
       }
-      saveStateOffset = raf.readLong();
+      //Split the days into chunks
+      fileSize = channel.size();
+      int numDays = Math.max(0, simulationInfo.numDays);
+      dayChunks = new int[numDays];
+      IntList firstDays = new IntList();
+      for (int day = 0; day < numDays; day++) {
+         long dayEnd = GetDayEnd(day);
+         if (dayEnd - dayOffsets[day] > Integer.MAX_VALUE) {
+            throw new IOException("Day " + day + " is too large to map (" + (dayEnd - dayOffsets[day]) + " bytes)");
+         }
+         //A day that's larger than a chunk gets a chunk to itself
+         if (firstDays.GetSize() == 0 || dayEnd - dayOffsets[firstDays.Get(firstDays.GetSize() - 1)] > CHUNK_SIZE) {
+            firstDays.Add(day);
+         }
+         dayChunks[day] = firstDays.GetSize() - 1;
+      }
+      chunkStarts = new long[firstDays.GetSize()];
+      chunkEnds = new long[firstDays.GetSize()];
+      for (int i = 0; i < chunkStarts.length; i++) {
+         int lastDay = (i + 1 < chunkStarts.length ? firstDays.Get(i + 1) : numDays) - 1;
+         chunkStarts[i] = dayOffsets[firstDays.Get(i)];
+         chunkEnds[i] = GetDayEnd(lastDay);
+      }
+      chunks = new MappedByteBuffer[chunkStarts.length];
+      dictionary = new ConcurrentHashMap<>();
+      dictionaryDay = -1;
+      view = new DayView();
+      scanViews = new ThreadLocal<DayView>() {
+         @Override
+         protected DayView initialValue() {
+            return new DayView();
+         }
+      };
+   }
+
+   //Days are saved one after another, followed by the save state
+   protected long GetDayEnd(int day) {
+      if (day + 1 < dayOffsets.length && dayOffsets[day + 1] != -1L) {
+         return dayOffsets[day + 1];
+      }
+      return saveStateOffset != -1L ? saveStateOffset : fileSize;
    }
 
    public void ReadDay(int day, PatchStats[][] patchStats, StrainStats[][] strainStats) throws IOException {
-      raf.seek(dayOffsets[day]);
-      DataInput input = new DataInputStream(new BufferedInputStream(new Input(raf)));
-      patchStats[0] = new PatchStats[simulationInfo.numPatches];
+      ReadDay(day, patchStats, strainStats, null);
+   }
+
+   //Also reads the day's lineage stats, if lineageStats is given (they're only saved with Strain_Interned)
+   public void ReadDay(int day, PatchStats[][] patchStats, StrainStats[][] strainStats, LineageStats[][] lineageStats) throws IOException {
+      View(day, view);
+      patchStats[0] = new PatchStats[view.GetNumPatches()];
       for (int i = 0; i < patchStats[0].length; i++) {
-         patchStats[0][i] = new PatchStats(input.readInt(), input.readInt(), input.readInt(), input.readInt(), input.readInt());
+         patchStats[0][i] = view.GetPatchStats(i);
       }
-      int numStrains = input.readInt();
-      strainStats[0] = new StrainStats[numStrains];
+      strainStats[0] = new StrainStats[view.GetNumStrains()];
       for (int i = 0; i < strainStats[0].length; i++) {
-         strainStats[0][i] = new StrainStats(input.readUTF(), input.readUTF(), input.readInt(), input.readInt(), input.readInt(), input.readInt(), input.readInt(), input.readInt());
+         strainStats[0][i] = view.GetStrainStats(i);
+      }
+      if (lineageStats != null) {
+         lineageStats[0] = new LineageStats[view.GetNumLineages()];
+         for (int i = 0; i < lineageStats[0].length; i++) {
+            lineageStats[0][i] = view.GetLineageStats(i);
+         }
+      }
+   }
+
+   public DayView View(int day) throws IOException {
+      return View(day, new DayView());
+   }
+
+   //Points a view at a day (views can be reused, so reading a day doesn't have to allocate anything)
+   public DayView View(int day, DayView view) throws IOException {
+      if (day < 0 || day >= dayChunks.length) {
+         throw new IndexOutOfBoundsException("Day " + day + " isn't in the file (" + dayChunks.length + " days)");
+      }
+      if (majorVersion >= 6) {
+         //The strains saved today may have been added to the dictionary on any day up to this one
+         LoadDictionary(day);
+      }
+      int chunk = dayChunks[day];
+      view.Set(this, day, GetChunk(chunk), (int) (dayOffsets[day] - chunkStarts[chunk]));
+      return view;
+   }
+
+   //Runs a scan over days [firstDay, lastDay) on a pool of its own (with Threads.GetCount() threads, like ParallelEngine)
+   public <T> T Scan(int firstDay, int lastDay, DayScan<T> scan) throws IOException {
+      ForkJoinPool pool = new ForkJoinPool(Threads.GetCount());
+      try {
+         return Scan(firstDay, lastDay, scan, pool);
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+   //Runs a scan over days [firstDay, lastDay), splitting the days across the pool
+   public <T> T Scan(int firstDay, int lastDay, DayScan<T> scan, ForkJoinPool pool) throws IOException {
+      if (firstDay < 0 || lastDay > dayChunks.length || firstDay > lastDay) {
+         throw new IndexOutOfBoundsException("Days " + firstDay + " to " + lastDay + " aren't in the file (" + dayChunks.length + " days)");
+      }
+      if (firstDay == lastDay) {
+         return scan.CreateAccumulator();
+      }
+      if (majorVersion >= 6) {
+         //Load the whole dictionary up front, so the tasks never wait on each other to load it
+         LoadDictionary(lastDay - 1);
+      }
+      try {
+         return pool.invoke(new ScanTask<>(scan, firstDay, lastDay));
+      } catch (RuntimeException ex) {
+         //If reading a day failed in one of the tasks, throw the IOException it wrapped
+         for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+               throw (IOException) cause;
+            }
+         }
+         throw ex;
+      }
+   }
+
+   //Maps chunks the first time they're needed
+   protected synchronized ByteBuffer GetChunk(int chunk) throws IOException {
+      if (chunks[chunk] == null) {
+         chunks[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStarts[chunk], chunkEnds[chunk] - chunkStarts[chunk]);
       }
+      return chunks[chunk];
+   }
+
+   //Since 6.0, each day starts with the strains added to the dictionary that day (see StatsWriter)
+   protected void LoadDictionary(int day) throws IOException {
+      if (dictionaryDay < day) {
+         LoadDictionarySections(day);
+      }
+   }
+
+   protected synchronized void LoadDictionarySections(int day) throws IOException {
+      for (; dictionaryDay < day; dictionaryDay++) {
+         int chunk = dayChunks[dictionaryDay + 1];
+         ByteBuffer data = GetChunk(chunk);
+         int offset = (int) (dayOffsets[dictionaryDay + 1] - chunkStarts[chunk]);
+         int numEntries = data.getInt(offset);
+         offset += 4;
+         for (int i = 0; i < numEntries; i++) {
+            DictionaryEntry entry = new DictionaryEntry();
+            int id = data.getInt(offset);
+            entry.parentID = data.getInt(offset + 4);
+            entry.mutations = data.getInt(offset + 8);
+            entry.firstSeenDay = data.getInt(offset + 12);
+            entry.data = data;
+            entry.stringOffset = offset + 16;
+            offset = SkipUTF(data, SkipUTF(data, entry.stringOffset));
+            dictionary.put(id, entry);
+         }
+      }
+   }
+
+   protected DictionaryEntry GetDictionaryEntry(int id) {
+      DictionaryEntry entry = dictionary.get(id);
+      if (entry == null) {
+         throw new IllegalStateException("Strain " + id + " isn't in the dictionary");
+      }
+      return entry;
+   }
+
+   //Decodes a string saved by DataOutput.writeUTF
+   protected static String GetUTF(ByteBuffer data, int offset) {
+      int length = data.getShort(offset) & 0xFFFF;
+      char[] chars = new char[length];
+      int numChars = 0;
+      for (int i = offset + 2; i < offset + 2 + length; i++) {
+         int b = data.get(i) & 0xFF;
+         if (b < 0x80) {
+            chars[numChars++] = (char) b;
+         } else if ((b & 0xE0) == 0xC0) {
+            chars[numChars++] = (char) (((b & 0x1F) << 6) | (data.get(++i) & 0x3F));
+         } else {
+            int b2 = data.get(++i) & 0x3F;
+            int b3 = data.get(++i) & 0x3F;
+            chars[numChars++] = (char) (((b & 0x0F) << 12) | (b2 << 6) | b3);
+         }
+      }
+      return new String(chars, 0, numChars);
+   }
+
+   //The offset just past a string saved by DataOutput.writeUTF
+   protected static int SkipUTF(ByteBuffer data, int offset) {
+      return offset + 2 + (data.getShort(offset) & 0xFFFF);
    }
 
    public DataInput GetSaveStateInput() throws IOException {
@@ -92,11 +291,91 @@ public class StatsReader {
       }
       protected RandomAccessFile raf;
    }
+
+   //Scans a range of days, or splits it in half and combines the halves in day order
+   protected class ScanTask<T> extends RecursiveTask<T> {
+
+      public ScanTask(DayScan<T> scan, int first, int last) {
+         this.scan = scan;
+         this.first = first;
+         this.last = last;
+      }
+
+      @Override
+      protected T compute() {
+         if (last - first <= SCAN_DAYS) {
+            //Each thread reads its days through a view of its own
+            DayView view = scanViews.get();
+            T accumulator = scan.CreateAccumulator();
+            for (int day = first; day < last; day++) {
+               try {
+                  View(day, view);
+               } catch (IOException ex) {
+                  throw new RuntimeException(ex);
+               }
+               scan.Visit(view, accumulator);
+            }
+            return accumulator;
+         }
+         int middle = (first + last) / 2;
+         ScanTask<T> left = new ScanTask<>(scan, first, middle);
+         ScanTask<T> right = new ScanTask<>(scan, middle, last);
+         invokeAll(left, right);
+         return scan.Combine(left.join(), right.join());
+      }
+      private static final long serialVersionUID = 1L;
+      protected DayScan<T> scan;
+      protected int first;
+      protected int last;
+   }
+
+   //The parts of a strain's stats that never change, saved once in the dictionary (the strings are decoded when they're needed)
+   protected static class DictionaryEntry {
+
+      public String GetRNA() {
+         if (rna == null) {
+            rna = GetUTF(data, stringOffset);
+         }
+         return rna;
+      }
+
+      public String GetProtein() {
+         if (protein == null) {
+            protein = GetUTF(data, SkipUTF(data, stringOffset));
+         }
+         return protein;
+      }
+      public int parentID;
+      public int mutations;
+      public int firstSeenDay;
+      //Where the strings are in the mapped file
+      public ByteBuffer data;
+      public int stringOffset;
+      protected String rna;
+      protected String protein;
+   }
+   protected static final long CHUNK_SIZE = 1L << 30;
+   //The most days a scan task reads before splitting them up
+   protected static final int SCAN_DAYS = 64;
    public SimulationInfo simulationInfo;
    public RuntimeInfo runtimeInfo;
    protected String filename;
    protected RandomAccessFile raf;
+   protected FileChannel channel;
    protected long[] dayOffsets;
    protected long saveStateOffset;
+   protected long fileSize;
    protected BufferedInputStream bufferedInput;
+   protected int majorVersion;
+   //The chunk each day is in, and where each chunk starts and ends in the file
+   protected int[] dayChunks;
+   protected long[] chunkStarts;
+   protected long[] chunkEnds;
+   protected MappedByteBuffer[] chunks;
+   //Every strain in the dictionary sections read so far (through dictionaryDay), by strain ID
+   protected ConcurrentHashMap<Integer, DictionaryEntry> dictionary;
+   protected volatile int dictionaryDay;
+   //The view ReadDay uses, and the views scan tasks use (one per thread)
+   protected DayView view;
+   protected ThreadLocal<DayView> scanViews;
 }
@@ -2,18 +2,57 @@ package stats;
 
 import fergusonmodel.Main;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import util.IntIntMap;
+import util.IntList;
 
+/*
+ * Writes the stats file. After the header (version, simulation info, runtime
+ * info, a table with the offset of each day, and the offset of the save state),
+ * each day is saved as:
+ *  - the strain dictionary: the strains saved for the first time (or the first
+ *    time since they last disappeared), with everything about them that never
+ *    changes - ID, parent ID, mutations, the day they were first seen, and the
+ *    RNA and protein strings
+ *  - the patch stats, one column per counter
+ *  - the strain stats, as columns of IDs, infected, and incidence (the rest is
+ *    in the dictionary, and the age is the day minus the day first seen)
+ *  - with Strain_Interned, the lineage stats as columns of parent and child IDs
+ * Before 6.0, every day repeated all of each strain's stats, strings included.
+ *
+ * SaveDay only copies the day's stats into a snapshot; a background thread
+ * encodes the snapshots and writes them to the file while the simulation moves
+ * on to the next day. There's a fixed ring of snapshots, so if the disk falls
+ * behind, SaveDay waits for one to be written instead of using more memory.
+ *
+ * Days are appended through a FileChannel from a large direct buffer, and the
+ * table of day offsets is kept in memory and only written to the header at
+ * checkpoints (every CHECKPOINT_DAYS days, before the save state, and on Close).
+ * A file that's still being written can be read up to the last checkpoint.
+ */
 public class StatsWriter {
 
+   //The number of days that can be waiting to be written (0 to write each day on the simulation thread)
+   public static final String BUFFERS_PROPERTY = "statsBuffers";
+
    public StatsWriter(String filename, SimulationInfo simulationInfo, RuntimeInfo runtimeInfo) {
       this.filename = filename;
       this.simulationInfo = simulationInfo;
       this.runtimeInfo = runtimeInfo;
+      firstSeenDays = new IntIntMap();
+      previousFirstSeenDays = new IntIntMap();
+      newStrains = new IntList();
+      buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
    }
 
    public void Initialize() throws IOException {
-      dayOffsetsTable = new int[simulationInfo.numDays];
       raf = new RandomAccessFile(filename, "rw");
+      channel = raf.getChannel();
       raf.writeInt(Main.VERSION);
       //Write the simulation info
       simulationInfo.Write(raf);
@@ -22,57 +61,226 @@ public class StatsWriter {
       //of the data structure.
       runtimeInfoOffset = raf.getFilePointer();
       runtimeInfo.Write(raf);
-      for (int i = 0; i < simulationInfo.numDays; i++) {
-         dayOffsetsTable[i] = (int) raf.getFilePointer();
-         raf.writeLong(-1);
-      }
-      saveStatePointerOffset = raf.getFilePointer();
-      raf.writeLong(-1);
-   }
-
-   public void SaveDay(int day, PatchStats[] patchStats, StrainStats[] strainStats) throws IOException {
-      long filePointer = raf.getFilePointer();
-      raf.seek(dayOffsetsTable[day]);
-      raf.writeLong(filePointer);
-      raf.seek(filePointer);
-      BufferedOutputStream bos = new BufferedOutputStream(new Output(raf));
-      DataOutput output = new DataOutputStream(bos);
-      for (PatchStats stats : patchStats) {
-         output.writeInt(stats.naive);
-         output.writeInt(stats.exposed);
-         output.writeInt(stats.infectious);
-         output.writeInt(stats.recovered);
-         output.writeInt(stats.incidence);
-      }
-      output.writeInt(strainStats.length);
-      for (StrainStats stats : strainStats) {
-         output.writeUTF(stats.rna);
-         output.writeUTF(stats.protein);
-         output.writeInt(stats.id);
-         output.writeInt(stats.parentID);
-         output.writeInt(stats.infected);
-         output.writeInt(stats.incidence);
-         output.writeInt(stats.mutations);
-         output.writeInt(stats.age);
-      }
-      bos.close();
+      //Reserve space for the day offsets and the save state offset (-1 until they're written)
+      dayOffsetsTableOffset = raf.getFilePointer();
+      dayOffsets = new long[simulationInfo.numDays];
+      Arrays.fill(dayOffsets, -1L);
+      saveStatePointerOffset = dayOffsetsTableOffset + 8L * dayOffsets.length;
+      WriteOffsets(dayOffsetsTableOffset, dayOffsets, 0, dayOffsets.length);
+      WriteOffsets(saveStatePointerOffset, new long[]{-1L}, 0, 1);
+      filePointer = saveStatePointerOffset + 8;
+      channel.position(filePointer);
+      firstDirtyDay = dayOffsets.length;
+      lastDirtyDay = -1;
+      //Start the background thread (with a single processor, there's nothing for it to overlap with)
+      int defaultBuffers = Runtime.getRuntime().availableProcessors() > 1 ? DEFAULT_BUFFERS : 0;
+      numSnapshots = Math.max(0, Integer.getInteger(BUFFERS_PROPERTY, defaultBuffers));
+      if (numSnapshots > 0) {
+         emptySnapshots = new ArrayBlockingQueue<>(numSnapshots);
+         fullSnapshots = new ArrayBlockingQueue<>(numSnapshots);
+         for (int i = 0; i < numSnapshots; i++) {
+            emptySnapshots.add(new DaySnapshot());
+         }
+         serializer = new Serializer();
+         serializer.start();
+      } else {
+         snapshot = new DaySnapshot();
+      }
+   }
+
+   public void SaveDay(int day, PatchStats[] patchStats, StrainStats[] strainStats, LineageStats[] lineageStats) throws IOException {
+      if (serializer == null) {
+         snapshot.Fill(day, patchStats, strainStats, lineageStats);
+         Write(snapshot);
+         return;
+      }
+      //Wait for a free snapshot if the background thread is behind
+      DaySnapshot free = Take(emptySnapshots);
+      if (error != null) {
+         emptySnapshots.add(free);
+         throw new IOException("Couldn't save the stats", error);
+      }
+      free.Fill(day, patchStats, strainStats, lineageStats);
+      fullSnapshots.add(free);
+   }
+
+   //Waits until every day passed to SaveDay has been written
+   public void Flush() throws IOException {
+      if (serializer == null) {
+         return;
+      }
+      //Every snapshot is back in the ring once it's written
+      DaySnapshot[] snapshots = new DaySnapshot[numSnapshots];
+      for (int i = 0; i < numSnapshots; i++) {
+         snapshots[i] = Take(emptySnapshots);
+      }
+      emptySnapshots.addAll(Arrays.asList(snapshots));
+      if (error != null) {
+         throw new IOException("Couldn't save the stats", error);
+      }
+   }
+
+   //Encodes a day and appends it to the file (on the background thread, unless there isn't one)
+   protected void Write(DaySnapshot day) throws IOException {
+      //Only remember the strains that were saved yesterday, so a strain is back in the dictionary if it reappears
+      IntIntMap temp = previousFirstSeenDays;
+      previousFirstSeenDays = firstSeenDays;
+      firstSeenDays = temp;
+      firstSeenDays.Clear();
+      newStrains.Clear();
+      for (int i = 0; i < day.numStrains; i++) {
+         int firstSeenDay = day.day - day.ages[i];
+         int previousFirstSeenDay = previousFirstSeenDays.Get(day.ids[i], NOT_SEEN);
+         if (previousFirstSeenDay == NOT_SEEN) {
+            newStrains.Add(i);
+         } else if (previousFirstSeenDay != firstSeenDay) {
+            throw new IOException("Strain " + day.ids[i] + " is " + day.ages[i] + " days old on day " + day.day + ", but it was first seen on day " + previousFirstSeenDay);
+         }
+         firstSeenDays.Put(day.ids[i], firstSeenDay);
+      }
+      //The day starts wherever the buffer is, and the offsets table is updated at the next checkpoint
+      dayOffsets[day.day] = filePointer + buffer.position();
+      firstDirtyDay = Math.min(firstDirtyDay, day.day);
+      lastDirtyDay = Math.max(lastDirtyDay, day.day);
+      PutInt(newStrains.GetSize());
+      for (int j = 0; j < newStrains.GetSize(); j++) {
+         int i = newStrains.Get(j);
+         PutInt(day.ids[i]);
+         PutInt(day.parentIDs[i]);
+         PutInt(day.mutations[i]);
+         PutInt(day.day - day.ages[i]);
+         PutUTF(day.strains[i].GetRNA());
+         PutUTF(day.strains[i].GetProtein());
+      }
+      PutColumn(day.naive, day.numPatches);
+      PutColumn(day.exposed, day.numPatches);
+      PutColumn(day.infectious, day.numPatches);
+      PutColumn(day.recovered, day.numPatches);
+      PutColumn(day.patchIncidence, day.numPatches);
+      PutInt(day.numStrains);
+      PutColumn(day.ids, day.numStrains);
+      PutColumn(day.infected, day.numStrains);
+      PutColumn(day.strainIncidence, day.numStrains);
+      if (simulationInfo.strainAlgorithm == SimulationInfo.Algorithm.Strain_Interned) {
+         PutInt(day.numLineages);
+         PutColumn(day.lineageParentIDs, day.numLineages);
+         PutColumn(day.lineageChildIDs, day.numLineages);
+      }
+      //Don't hold on to strains after they're gone
+      Arrays.fill(day.strains, 0, day.numStrains, null);
+      if (lastDirtyDay - firstDirtyDay + 1 >= CHECKPOINT_DAYS) {
+         Checkpoint();
+      }
+   }
+
+   //Writes out everything that's buffered, and then the offsets of the days it contains
+   protected void Checkpoint() throws IOException {
+      FlushBuffer();
+      if (lastDirtyDay >= firstDirtyDay) {
+         WriteOffsets(dayOffsetsTableOffset + 8L * firstDirtyDay, dayOffsets, firstDirtyDay, lastDirtyDay - firstDirtyDay + 1);
+      }
+      firstDirtyDay = dayOffsets.length;
+      lastDirtyDay = -1;
+   }
+
+   protected void FlushBuffer() throws IOException {
+      buffer.flip();
+      filePointer += buffer.remaining();
+      while (buffer.hasRemaining()) {
+         channel.write(buffer);
+      }
+      buffer.clear();
+   }
+
+   //Writes offsets to the header without moving the channel's position
+   protected void WriteOffsets(long position, long[] offsets, int from, int length) throws IOException {
+      ByteBuffer bytes = ByteBuffer.allocate(8 * length);
+      bytes.asLongBuffer().put(offsets, from, length);
+      while (bytes.hasRemaining()) {
+         channel.write(bytes, position + bytes.position());
+      }
+   }
+
+   protected void PutInt(int value) throws IOException {
+      if (buffer.remaining() < 4) {
+         FlushBuffer();
+      }
+      buffer.putInt(value);
+   }
+
+   protected void PutColumn(int[] column, int length) throws IOException {
+      int offset = 0;
+      while (offset < length) {
+         if (buffer.remaining() < 4) {
+            FlushBuffer();
+         }
+         int count = Math.min(length - offset, buffer.remaining() / 4);
+         buffer.asIntBuffer().put(column, offset, count);
+         buffer.position(buffer.position() + 4 * count);
+         offset += count;
+      }
+   }
+
+   //The same bytes as DataOutput.writeUTF (modified UTF-8, after the length as an unsigned short)
+   protected void PutUTF(String string) throws IOException {
+      int length = 0;
+      for (int i = 0; i < string.length(); i++) {
+         char c = string.charAt(i);
+         length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+      }
+      if (length > 0xFFFF) {
+         throw new UTFDataFormatException("String is too long: " + length + " bytes");
+      }
+      if (buffer.remaining() < 2 + length) {
+         FlushBuffer();
+      }
+      buffer.putShort((short) length);
+      for (int i = 0; i < string.length(); i++) {
+         char c = string.charAt(i);
+         if (c >= 0x0001 && c <= 0x007F) {
+            buffer.put((byte) c);
+         } else if (c <= 0x07FF) {
+            buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+         } else {
+            buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+            buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            buffer.put((byte) (0x80 | (c & 0x3F)));
+         }
+      }
+   }
+
+   protected static DaySnapshot Take(BlockingQueue<DaySnapshot> queue) throws IOException {
+      try {
+         return queue.take();
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+         throw new InterruptedIOException("Interrupted while saving the stats");
+      }
    }
 
    public DataOutput GetSaveStateOutput() throws IOException {
+      //The save state goes after the last day
+      Flush();
+      Checkpoint();
       //Update the save state file offset in the header
-      long filePointer = raf.getFilePointer();
-      raf.seek(saveStatePointerOffset);
-      raf.writeLong(filePointer);
-      raf.seek(filePointer);
+      WriteOffsets(saveStatePointerOffset, new long[]{filePointer}, 0, 1);
       //Return the output stream so the other classes can save their states
-      bufferedOutput = new BufferedOutputStream(new Output(raf));
+      bufferedOutput = new BufferedOutputStream(Channels.newOutputStream(channel));
       DataOutput output = new DataOutputStream(bufferedOutput);
       return output;
    }
 
    public void Close() throws IOException {
+      Flush();
+      if (serializer != null) {
+         serializer.interrupt();
+         serializer = null;
+      }
+      Checkpoint();
       if (bufferedOutput != null) {
-         bufferedOutput.close();
+         //Closing the stream would close the channel
+         bufferedOutput.flush();
       }
       //Seek to the runtime info file location, update the simulation timer, and
       //(re)write the runtime info data structure
@@ -83,35 +291,147 @@ public class StatsWriter {
       raf.close();
    }
 
-   //This wraps the RandomAcessFile as an output stream - it's much more efficient
-   public static class Output extends OutputStream {
+   //A copy of one day's stats, so the simulation can update the originals while the day is being written
+   protected static class DaySnapshot {
 
-      public Output(RandomAccessFile raf) {
-         this.raf = raf;
+      public void Fill(int day, PatchStats[] patchStats, StrainStats[] strainStats, LineageStats[] lineageStats) {
+         this.day = day;
+         numPatches = patchStats.length;
+         if (naive == null || naive.length < numPatches) {
+            naive = new int[numPatches];
+            exposed = new int[numPatches];
+            infectious = new int[numPatches];
+            recovered = new int[numPatches];
+            patchIncidence = new int[numPatches];
+         }
+         for (int i = 0; i < numPatches; i++) {
+            PatchStats stats = patchStats[i];
+            naive[i] = stats.naive;
+            exposed[i] = stats.exposed;
+            infectious[i] = stats.infectious;
+            recovered[i] = stats.recovered;
+            patchIncidence[i] = stats.incidence;
+         }
+         numStrains = strainStats.length;
+         if (ids == null || ids.length < numStrains) {
+            int capacity = Math.max(numStrains, ids == null ? 0 : ids.length * 2);
+            strains = new StrainStats[capacity];
+            ids = new int[capacity];
+            parentIDs = new int[capacity];
+            infected = new int[capacity];
+            strainIncidence = new int[capacity];
+            mutations = new int[capacity];
+            ages = new int[capacity];
+         }
+         for (int i = 0; i < numStrains; i++) {
+            StrainStats stats = strainStats[i];
+            //The strings never change, so they're built from the original
+            strains[i] = stats;
+            ids[i] = stats.id;
+            parentIDs[i] = stats.parentID;
+            infected[i] = stats.infected;
+            strainIncidence[i] = stats.incidence;
+            mutations[i] = stats.mutations;
+            ages[i] = stats.age;
+         }
+         numLineages = lineageStats.length;
+         if (lineageParentIDs == null || lineageParentIDs.length < numLineages) {
+            int capacity = Math.max(numLineages, lineageParentIDs == null ? 0 : lineageParentIDs.length * 2);
+            lineageParentIDs = new int[capacity];
+            lineageChildIDs = new int[capacity];
+         }
+         for (int i = 0; i < numLineages; i++) {
+            lineageParentIDs[i] = lineageStats[i].parentID;
+            lineageChildIDs[i] = lineageStats[i].childID;
+         }
       }
+      public int day;
+      public int numPatches;
+      public int[] naive;
+      public int[] exposed;
+      public int[] infectious;
+      public int[] recovered;
+      public int[] patchIncidence;
+      public int numStrains;
+      public StrainStats[] strains;
+      public int[] ids;
+      public int[] parentIDs;
+      public int[] infected;
+      public int[] strainIncidence;
+      public int[] mutations;
+      public int[] ages;
+      public int numLineages;
+      public int[] lineageParentIDs;
+      public int[] lineageChildIDs;
+   }
 
-      @Override
-      public void write(int b) throws IOException {
-         raf.write(b);
-      }
+   //Writes the snapshots passed to SaveDay, in order, and puts them back in the ring
+   protected class Serializer extends Thread {
 
-      @Override
-      public void write(byte[] b) throws IOException {
-         raf.write(b);
+      public Serializer() {
+         super("StatsWriter");
+         //Don't keep the JVM alive if the simulation fails before the file is closed
+         setDaemon(true);
       }
 
       @Override
-      public void write(byte[] b, int off, int len) throws IOException {
-         raf.write(b, off, len);
+      public void run() {
+         while (true) {
+            DaySnapshot day;
+            try {
+               day = fullSnapshots.take();
+            } catch (InterruptedException ex) {
+               //Closed
+               return;
+            }
+            //Once there's been an error, the rest of the days are dropped
+            if (error == null) {
+               try {
+                  Write(day);
+               } catch (IOException | RuntimeException ex) {
+                  error = ex;
+               }
+            }
+            emptySnapshots.add(day);
+         }
       }
-      protected RandomAccessFile raf;
    }
+
+   protected static final int DEFAULT_BUFFERS = 4;
+   protected static final int BUFFER_SIZE = 1 << 20;
+   protected static final int CHECKPOINT_DAYS = 100;
+   //Not a day a strain can be first seen on (strains are only created during the simulation)
+   protected static final int NOT_SEEN = Integer.MIN_VALUE;
    protected String filename;
    protected RandomAccessFile raf;
-   protected int[] dayOffsetsTable;
+   protected FileChannel channel;
+   //Days are encoded here, and written to the channel whenever it fills up
+   protected ByteBuffer buffer;
+   //The end of what's been written to the channel (where the buffer will go)
+   protected long filePointer;
+   //The offset of each day in the file (-1 if it hasn't been saved), and where they go in the header
+   protected long[] dayOffsets;
+   protected long dayOffsetsTableOffset;
+   //The range of days whose offsets haven't been written to the header yet
+   protected int firstDirtyDay;
+   protected int lastDirtyDay;
    protected SimulationInfo simulationInfo;
    protected RuntimeInfo runtimeInfo;
    protected long runtimeInfoOffset;
    protected long saveStatePointerOffset;
    protected BufferedOutputStream bufferedOutput;
+   //The day each strain saved today and yesterday was first seen, by strain ID
+   protected IntIntMap firstSeenDays;
+   protected IntIntMap previousFirstSeenDays;
+   //Scratch space for Write: the strains going in today's dictionary (by index in the snapshot)
+   protected IntList newStrains;
+   //The ring of snapshots (a snapshot is either empty, waiting to be written, or being filled or written)
+   protected int numSnapshots;
+   protected BlockingQueue<DaySnapshot> emptySnapshots;
+   protected BlockingQueue<DaySnapshot> fullSnapshots;
+   protected Serializer serializer;
+   //The first error on the background thread, thrown by the next call to SaveDay or Flush
+   protected volatile Exception error;
+   //The only snapshot, when there's no background thread
+   protected DaySnapshot snapshot;
 }
@@ -1,8 +1,11 @@
 package stats;
 
+import util.GeneticCode;
+
 public class StrainStats {
 
    public static final int NULL_PARENT = -1;
+   public static final int UNASSIGNED_ID = -2;
 
    public StrainStats() {
       rna = "";
@@ -15,6 +18,15 @@ public class StrainStats {
       age = 0;
    }
 
+   //Stats for a strain in the simulation - rna and protein are left null, and GetRNA and GetProtein build
+   //the strings from the genome each time they're called (the stats file only needs them once)
+   public StrainStats(long genomeLow, long genomeHigh, int numCodons, int id, int parentID, int infected, int incidence, int mutations, int age) {
+      this(null, null, id, parentID, infected, incidence, mutations, age);
+      this.genomeLow = genomeLow;
+      this.genomeHigh = genomeHigh;
+      this.numCodons = numCodons;
+   }
+
    public StrainStats(String rna, String protein, int id, int parentID, int infected, int incidence, int mutations, int age) {
       this.rna = rna;
       this.protein = protein;
@@ -25,8 +37,21 @@ public class StrainStats {
       this.mutations = mutations;
       this.age = age;
    }
+
+   public String GetRNA() {
+      return rna != null ? rna : GeneticCode.GetRNAString(genomeLow, genomeHigh, numCodons);
+   }
+
+   public String GetProtein() {
+      return protein != null ? protein : GeneticCode.GetProteinString(genomeLow, genomeHigh, numCodons);
+   }
+   //Set for stats read from a stats file (null for strains in the simulation - use GetRNA and GetProtein)
    public String rna;
    public String protein;
+   //The packed genome (see GeneticCode), used to build the strings
+   protected long genomeLow;
+   protected long genomeHigh;
+   protected int numCodons;
    public int id;
    public int parentID;
    public int infected;
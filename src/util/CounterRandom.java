@@ -0,0 +1,162 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+ * A counter-based random number generator (Philox4x32-10, from Salmon et al.,
+ * "Parallel Random Numbers: As Easy as 1, 2, 3"). Each block of 4 random ints
+ * is a pure function of the seed and a 128-bit counter, so there's no state to
+ * carry from one draw to the next - Seek picks the stream for a decision
+ * (date, stream, purpose), and draws continue from there in blocks.
+ *
+ * Integers and doubles are drawn the same way as MersenneTwister, except that
+ * nextDouble uses 53 bits instead of 32, and nextInt(n) uses Lemire's
+ * multiply-and-reject method (like Xoshiro256), so it's unbiased.
+ */
+public class CounterRandom implements RandomSource {
+
+   public CounterRandom(long seed) {
+      this.seed = seed;
+      block = new int[BLOCK_SIZE];
+      Seek(0, 0, 0, 0);
+   }
+
+   //Moves to the start of a block in the stream for one decision
+   public void Seek(int date, int stream, int purpose, int block) {
+      counter0 = block;
+      counter1 = stream;
+      counter2 = purpose;
+      counter3 = date;
+      index = BLOCK_SIZE;
+   }
+
+   public long GetSeed() {
+      return seed;
+   }
+
+   //Philox4x32-10 - encrypts the counter with the seed as the key
+   public static void Generate(int counter0, int counter1, int counter2, int counter3, long seed, int[] output) {
+      int c0 = counter0;
+      int c1 = counter1;
+      int c2 = counter2;
+      int c3 = counter3;
+      int k0 = (int) seed;
+      int k1 = (int) (seed >>> 32);
+      for (int round = 0; round < ROUNDS; round++) {
+         long product0 = M0 * (c0 & 0xFFFFFFFFL);
+         long product1 = M1 * (c2 & 0xFFFFFFFFL);
+         c0 = (int) (product1 >>> 32) ^ c1 ^ k0;
+         c1 = (int) product1;
+         c2 = (int) (product0 >>> 32) ^ c3 ^ k1;
+         c3 = (int) product0;
+         k0 += W0;
+         k1 += W1;
+      }
+      output[0] = c0;
+      output[1] = c1;
+      output[2] = c2;
+      output[3] = c3;
+   }
+
+   //Checks the generator against the known answer tests from the Random123 distribution
+   public static boolean CheckTestVectors() {
+      int[] output = new int[BLOCK_SIZE];
+      Generate(0, 0, 0, 0, 0, output);
+      boolean zeros = output[0] == 0x6627e8d5 && output[1] == 0xe169c58d && output[2] == 0xbc57ac4c && output[3] == 0x9b00dbd8;
+      Generate(-1, -1, -1, -1, -1, output);
+      boolean ones = output[0] == 0x408f276d && output[1] == 0x41c83b0e && output[2] == 0xa20bc7c6 && output[3] == 0x6d5451fd;
+      Generate(0x243f6a88, 0x85a308d3, 0x13198a2e, 0x03707344, 0x299f31d0a4093822L, output);
+      boolean pi = output[0] == 0xd16cfe09 && output[1] == 0x94fdcceb && output[2] == 0x5001e420 && output[3] == 0x24126ea1;
+      return zeros && ones && pi;
+   }
+
+   //RandomSource functions
+   @Override
+   public double nextDouble() {
+      long a = (NextWord() & 0xFFFFFFFFL) >>> 5;
+      long b = (NextWord() & 0xFFFFFFFFL) >>> 6;
+      return (a * 67108864.0 + b) * (1.0 / 9007199254740992.0);
+   }
+
+   @Override
+   public int nextInt() {
+      return NextWord();
+   }
+
+   @Override
+   public int nextInt(int n) {
+      if (n <= 0) {
+         throw new IllegalArgumentException("n must be positive: " + n);
+      }
+      //The top 32 bits of a 32x32 bit product are uniform over [0, n), except for a few low parts
+      long product = (NextWord() & 0xFFFFFFFFL) * n;
+      long low = product & 0xFFFFFFFFL;
+      if (low < n) {
+         long threshold = (0x100000000L - n) % n;
+         while (low < threshold) {
+            product = (NextWord() & 0xFFFFFFFFL) * n;
+            low = product & 0xFFFFFFFFL;
+         }
+      }
+      return (int) (product >>> 32);
+   }
+
+   @Override
+   public long nextLong() {
+      return ((NextWord() & 0xFFFFFFFFL) << 32) | (NextWord() & 0xFFFFFFFFL);
+   }
+
+   @Override
+   public float nextFloat() {
+      return (NextWord() >>> 8) * (1.0f / 16777216.0f);
+   }
+
+   @Override
+   public void SaveState(DataOutput out) throws IOException {
+      out.writeLong(seed);
+      out.writeInt(counter0);
+      out.writeInt(counter1);
+      out.writeInt(counter2);
+      out.writeInt(counter3);
+      out.writeInt(index);
+   }
+
+   @Override
+   public void LoadState(DataInput in) throws IOException {
+      seed = in.readLong();
+      counter0 = in.readInt();
+      counter1 = in.readInt();
+      counter2 = in.readInt();
+      counter3 = in.readInt();
+      index = in.readInt();
+      if (index < BLOCK_SIZE) {
+         //The counter has already moved past the current block
+         Generate(counter0 - 1, counter1, counter2, counter3, seed, block);
+      }
+   }
+
+   //Custom functions
+   protected int NextWord() {
+      if (index == BLOCK_SIZE) {
+         Generate(counter0, counter1, counter2, counter3, seed, block);
+         ++counter0;
+         index = 0;
+      }
+      return block[index++];
+   }
+   protected static final int BLOCK_SIZE = 4;
+   protected static final int ROUNDS = 10;
+   protected static final long M0 = 0xD2511F53L;
+   protected static final long M1 = 0xCD9E8D57L;
+   protected static final int W0 = 0x9E3779B9;
+   protected static final int W1 = 0xBB67AE85;
+   protected long seed;
+   protected int counter0;
+   protected int counter1;
+   protected int counter2;
+   protected int counter3;
+   protected int[] block;
+   protected int index;
+}
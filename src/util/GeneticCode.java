@@ -0,0 +1,175 @@
+package util;
+
+import java.util.HashMap;
+
+/*
+ * The genetic code, and the decoding of packed genomes (see fergusonmodel.Strain)
+ * into RNA and protein strings. A packed genome is two longs, with the codons
+ * CODONS_PER_WORD to a word and 6 bits (3 nucleic acids) to a codon, so it can
+ * be decoded without the simulator - the stats writer and reader only need the
+ * number of codons.
+ */
+public class GeneticCode {
+
+   //The codon at the given index (epitope * codonsPerEpitope + codon) of a packed genome
+   public static int GetCodonAt(long genomeLow, long genomeHigh, int index) {
+      if (index < CODONS_PER_WORD) {
+         return (int) (genomeLow >>> (index * 6)) & 0x3F;
+      } else {
+         return (int) (genomeHigh >>> ((index - CODONS_PER_WORD) * 6)) & 0x3F;
+      }
+   }
+
+   public static String GetRNAString(long genomeLow, long genomeHigh, int numCodons) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < numCodons; i++) {
+         int codon = GetCodonAt(genomeLow, genomeHigh, i);
+         for (int shift = 4; shift >= 0; shift -= 2) {
+            switch ((codon >> shift) & 0x03) {
+               case U:
+                  sb.append("U");
+                  break;
+               case C:
+                  sb.append("C");
+                  break;
+               case A:
+                  sb.append("A");
+                  break;
+               case G:
+                  sb.append("G");
+                  break;
+            }
+         }
+      }
+      return sb.toString();
+   }
+
+   public static String GetProteinString(long genomeLow, long genomeHigh, int numCodons) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < numCodons; i++) {
+         sb.append(aaIntToStr.get((int) codonToAA[GetCodonAt(genomeLow, genomeHigh, i)]));
+      }
+      return sb.toString();
+   }
+
+   public static int GetCodon(int a, int b, int c) {
+      return (a << 4) | (b << 2) | c;
+   }
+   public static final int A = 0;
+   public static final int U = 1;
+   public static final int G = 2;
+   public static final int C = 3;
+   public static final int ALA = 0;
+   public static final int ARG = 1;
+   public static final int ASN = 2;
+   public static final int ASP = 3;
+   public static final int CYS = 4;
+   public static final int GLN = 5;
+   public static final int GLU = 6;
+   public static final int GLY = 7;
+   public static final int HIS = 8;
+   public static final int ILE = 9;
+   public static final int LEU = 10;
+   public static final int LYS = 11;
+   public static final int MET = 12;
+   public static final int PHE = 13;
+   public static final int PRO = 14;
+   public static final int SER = 15;
+   public static final int THR = 16;
+   public static final int TRP = 17;
+   public static final int TYR = 18;
+   public static final int VAL = 19;
+   public static final int STOP = 20;
+   public static final int CODONS_PER_WORD = 10;
+   public static final byte[] codonToAA = new byte[64];
+   public static final HashMap<Integer, String> aaIntToStr = new HashMap<>();
+
+   static {
+      codonToAA[GetCodon(U, U, U)] = PHE;
+      codonToAA[GetCodon(U, U, C)] = PHE;
+      codonToAA[GetCodon(U, U, A)] = LEU;
+      codonToAA[GetCodon(U, U, G)] = LEU;
+      codonToAA[GetCodon(U, C, U)] = SER;
+      codonToAA[GetCodon(U, C, C)] = SER;
+      codonToAA[GetCodon(U, C, A)] = SER;
+      codonToAA[GetCodon(U, C, G)] = SER;
+      codonToAA[GetCodon(U, A, U)] = TYR;
+      codonToAA[GetCodon(U, A, C)] = TYR;
+      codonToAA[GetCodon(U, A, A)] = STOP;
+      codonToAA[GetCodon(U, A, G)] = STOP;
+      codonToAA[GetCodon(U, G, U)] = CYS;
+      codonToAA[GetCodon(U, G, C)] = CYS;
+      codonToAA[GetCodon(U, G, A)] = STOP;
+      codonToAA[GetCodon(U, G, G)] = TRP;
+      codonToAA[GetCodon(C, U, U)] = LEU;
+      codonToAA[GetCodon(C, U, C)] = LEU;
+      codonToAA[GetCodon(C, U, A)] = LEU;
+      codonToAA[GetCodon(C, U, G)] = LEU;
+      codonToAA[GetCodon(C, C, U)] = PRO;
+      codonToAA[GetCodon(C, C, C)] = PRO;
+      codonToAA[GetCodon(C, C, A)] = PRO;
+      codonToAA[GetCodon(C, C, G)] = PRO;
+      codonToAA[GetCodon(C, A, U)] = HIS;
+      codonToAA[GetCodon(C, A, C)] = HIS;
+      codonToAA[GetCodon(C, A, A)] = GLN;
+      codonToAA[GetCodon(C, A, G)] = GLN;
+      codonToAA[GetCodon(C, G, U)] = ARG;
+      codonToAA[GetCodon(C, G, C)] = ARG;
+      codonToAA[GetCodon(C, G, A)] = ARG;
+      codonToAA[GetCodon(C, G, G)] = ARG;
+      codonToAA[GetCodon(A, U, U)] = ILE;
+      codonToAA[GetCodon(A, U, C)] = ILE;
+      codonToAA[GetCodon(A, U, A)] = ILE;
+      codonToAA[GetCodon(A, U, G)] = MET;
+      codonToAA[GetCodon(A, C, U)] = THR;
+      codonToAA[GetCodon(A, C, C)] = THR;
+      codonToAA[GetCodon(A, C, A)] = THR;
+      codonToAA[GetCodon(A, C, G)] = THR;
+      codonToAA[GetCodon(A, A, U)] = ASN;
+      codonToAA[GetCodon(A, A, C)] = ASN;
+      codonToAA[GetCodon(A, A, A)] = LYS;
+      codonToAA[GetCodon(A, A, G)] = LYS;
+      codonToAA[GetCodon(A, G, U)] = SER;
+      codonToAA[GetCodon(A, G, C)] = SER;
+      codonToAA[GetCodon(A, G, A)] = ARG;
+      codonToAA[GetCodon(A, G, G)] = ARG;
+      codonToAA[GetCodon(G, U, U)] = VAL;
+      codonToAA[GetCodon(G, U, C)] = VAL;
+      codonToAA[GetCodon(G, U, A)] = VAL;
+      codonToAA[GetCodon(G, U, G)] = VAL;
+      codonToAA[GetCodon(G, C, U)] = ALA;
+      codonToAA[GetCodon(G, C, C)] = ALA;
+      codonToAA[GetCodon(G, C, A)] = ALA;
+      codonToAA[GetCodon(G, C, G)] = ALA;
+      codonToAA[GetCodon(G, A, U)] = ASP;
+      codonToAA[GetCodon(G, A, C)] = ASP;
+      codonToAA[GetCodon(G, A, A)] = GLU;
+      codonToAA[GetCodon(G, A, G)] = GLU;
+      codonToAA[GetCodon(G, G, U)] = GLY;
+      codonToAA[GetCodon(G, G, C)] = GLY;
+      codonToAA[GetCodon(G, G, A)] = GLY;
+      codonToAA[GetCodon(G, G, G)] = GLY;
+      //
+      aaIntToStr.put(ALA, "A");
+      aaIntToStr.put(ARG, "R");
+      aaIntToStr.put(ASN, "N");
+      aaIntToStr.put(ASP, "D");
+      aaIntToStr.put(CYS, "C");
+      aaIntToStr.put(GLN, "Q");
+      aaIntToStr.put(GLU, "E");
+      aaIntToStr.put(GLY, "G");
+      aaIntToStr.put(HIS, "H");
+      aaIntToStr.put(ILE, "I");
+      aaIntToStr.put(LEU, "L");
+      aaIntToStr.put(LYS, "K");
+      aaIntToStr.put(MET, "M");
+      aaIntToStr.put(PHE, "F");
+      aaIntToStr.put(PRO, "P");
+      aaIntToStr.put(SER, "S");
+      aaIntToStr.put(THR, "T");
+      aaIntToStr.put(TRP, "W");
+      aaIntToStr.put(TYR, "Y");
+      aaIntToStr.put(VAL, "V");
+      aaIntToStr.put(STOP, ".");
+   }
+}
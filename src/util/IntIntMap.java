@@ -0,0 +1,84 @@
+package util;
+
+import java.util.Arrays;
+
+/*
+ * Maps primitive int keys to int values, so puts and lookups don't box or
+ * allocate (the table only grows). Collisions are resolved by linear probing,
+ * like fergusonmodel.GenotypeTable. There's no removal - the map is meant to
+ * be cleared and refilled, like IntList.
+ */
+public class IntIntMap {
+
+   public IntIntMap() {
+      keys = new int[INITIAL_CAPACITY];
+      values = new int[INITIAL_CAPACITY];
+      full = new boolean[INITIAL_CAPACITY];
+      size = 0;
+   }
+
+   //Returns the value for the given key, or missing if the key isn't in the map
+   public int Get(int key, int missing) {
+      int mask = full.length - 1;
+      for (int i = Hash(key) & mask; full[i]; i = (i + 1) & mask) {
+         if (keys[i] == key) {
+            return values[i];
+         }
+      }
+      return missing;
+   }
+
+   //Sets the value for a key, replacing the old value if the key is already in the map
+   public void Put(int key, int value) {
+      if ((size + 1) * 2 > full.length) {
+         Resize(full.length * 2);
+      }
+      int mask = full.length - 1;
+      int i = Hash(key) & mask;
+      while (full[i]) {
+         if (keys[i] == key) {
+            values[i] = value;
+            return;
+         }
+         i = (i + 1) & mask;
+      }
+      keys[i] = key;
+      values[i] = value;
+      full[i] = true;
+      ++size;
+   }
+
+   public int GetSize() {
+      return size;
+   }
+
+   public void Clear() {
+      Arrays.fill(full, false);
+      size = 0;
+   }
+
+   protected void Resize(int capacity) {
+      int[] oldKeys = keys;
+      int[] oldValues = values;
+      boolean[] oldFull = full;
+      keys = new int[capacity];
+      values = new int[capacity];
+      full = new boolean[capacity];
+      size = 0;
+      for (int i = 0; i < oldFull.length; i++) {
+         if (oldFull[i]) {
+            Put(oldKeys[i], oldValues[i]);
+         }
+      }
+   }
+
+   protected static int Hash(int key) {
+      int h = key * 0x9E3779B9;
+      return h ^ (h >>> 16);
+   }
+   protected static final int INITIAL_CAPACITY = 64;
+   protected int[] keys;
+   protected int[] values;
+   protected boolean[] full;
+   protected int size;
+}
@@ -0,0 +1,48 @@
+package util;
+
+import java.util.Arrays;
+
+//A growable list of primitive ints; meant to be cleared and reused rather than reallocated
+public class IntList {
+
+   public static final int DEFAULT_CAPACITY = 16;
+
+   public IntList() {
+      this(DEFAULT_CAPACITY);
+   }
+
+   public IntList(int capacity) {
+      values = new int[Math.max(1, capacity)];
+      size = 0;
+   }
+
+   public void Add(int value) {
+      if (size == values.length) {
+         values = Arrays.copyOf(values, values.length * 2);
+      }
+      values[size++] = value;
+   }
+
+   public int Get(int index) {
+      return values[index];
+   }
+
+   public void Set(int index, int value) {
+      values[index] = value;
+   }
+
+   public void Clear() {
+      size = 0;
+   }
+
+   //Drops everything after the first [size] values
+   public void Truncate(int size) {
+      this.size = Math.min(this.size, size);
+   }
+
+   public int GetSize() {
+      return size;
+   }
+   protected int[] values;
+   protected int size;
+}
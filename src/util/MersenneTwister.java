@@ -6,7 +6,7 @@ import java.io.IOException;
 import java.util.Random;
 
 //http://www.math.sci.hiroshima-u.ac.jp/~m-mat/MT/MT2002/emt19937ar.html
-public class MersenneTwister extends Random {
+public class MersenneTwister extends Random implements RandomSource {
 
    //MT constructors
    public MersenneTwister() {
@@ -64,7 +64,6 @@ public class MersenneTwister extends Random {
 
    public long genrand_int32() {
       long y;
-      long[] mag01 = {0x0, MATRIX_A};
       if (mti >= N) {
          int kk;
          if (mti == N + 1) {
@@ -72,14 +71,14 @@ public class MersenneTwister extends Random {
          }
          for (kk = 0; kk < N - M; kk++) {
             y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
-            mt[kk] = mt[kk + M] ^ (y >> 1) ^ mag01[(int) (y & 0x1)];
+            mt[kk] = mt[kk + M] ^ (y >> 1) ^ MAG01[(int) (y & 0x1)];
          }
          for (; kk < N - 1; kk++) {
             y = (mt[kk] & UPPER_MASK) | (mt[kk + 1] & LOWER_MASK);
-            mt[kk] = mt[kk + (M - N)] ^ (y >> 1) ^ mag01[(int) (y & 0x1)];
+            mt[kk] = mt[kk + (M - N)] ^ (y >> 1) ^ MAG01[(int) (y & 0x1)];
          }
          y = (mt[N - 1] & UPPER_MASK) | (mt[0] & LOWER_MASK);
-         mt[N - 1] = mt[M - 1] ^ (y >> 1) ^ mag01[(int) (y & 0x1)];
+         mt[N - 1] = mt[M - 1] ^ (y >> 1) ^ MAG01[(int) (y & 0x1)];
          mti = 0;
       }
       y = mt[mti++];
@@ -201,6 +200,7 @@ public class MersenneTwister extends Random {
    protected static final long MATRIX_A = 0x9908b0dfl;
    protected static final long UPPER_MASK = 0x80000000l;
    protected static final long LOWER_MASK = 0x7fffffffl;
+   protected static final long[] MAG01 = {0x0, MATRIX_A};
    protected long[] mt;
    protected int mti = N + 1;
 }
@@ -16,7 +16,7 @@ public class PatchGenerator {
       if (file.exists()) {
          throw new Exception("The file [" + file.getName() + "] already exists; please delete it first.");
       }
-      MersenneTwister r = new MersenneTwister(seed);
+      RandomSource r = new MersenneTwister(seed);
       int numBins = (int) (Math.sqrt(numHosts) * .48);
       Main.Print("Points = " + numHosts);
       Main.Print("Bins = " + numBins + "x" + numBins + " = " + (numBins * numBins));
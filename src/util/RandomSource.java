@@ -0,0 +1,34 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+ * A random number generator (SimulationInfo.randomAlgorithm):
+ *  - MersenneTwister, which every simulation before 5.0 used
+ *  - Xoshiro256, which is faster and can jump ahead to split off streams
+ *  - CounterRandom, which draws from a stream of its own for each decision
+ * None of them are thread safe, so each thread needs its own.
+ */
+public interface RandomSource {
+
+   //Uniform over all ints
+   public int nextInt();
+
+   //Uniform over [0, n)
+   public int nextInt(int n);
+
+   //Uniform over all longs
+   public long nextLong();
+
+   //Uniform over [0, 1)
+   public double nextDouble();
+
+   //Uniform over [0, 1)
+   public float nextFloat();
+
+   public void SaveState(DataOutput out) throws IOException;
+
+   public void LoadState(DataInput in) throws IOException;
+}
@@ -0,0 +1,12 @@
+package util;
+
+//The number of worker threads for parallel work (ParallelEngine, and scans in StatsReader)
+public class Threads {
+
+   //Set with -Dthreads=<n> (the default is one per processor)
+   public static final String PROPERTY = "threads";
+
+   public static int GetCount() {
+      return Math.max(1, Integer.getInteger(PROPERTY, Runtime.getRuntime().availableProcessors()));
+   }
+}
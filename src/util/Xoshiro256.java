@@ -0,0 +1,158 @@
+package util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/*
+ * xoshiro256** (Blackman and Vigna, "Scrambled Linear Pseudorandom Number
+ * Generators"). The state is just 4 longs, nothing is synchronized, and every
+ * draw is a handful of shifts and multiplies. Jump moves 2^128 draws ahead, so
+ * copies of a generator can be split off into streams that never overlap.
+ *
+ * nextInt(n) uses Lemire's multiply-and-reject method, so unlike
+ * MersenneTwister's modulo it's unbiased.
+ */
+public class Xoshiro256 implements RandomSource {
+
+   //Fills the state from the seed with SplitMix64 (the seeding the authors recommend)
+   public Xoshiro256(long seed) {
+      long x = seed;
+      x += GOLDEN_GAMMA;
+      s0 = Mix(x);
+      x += GOLDEN_GAMMA;
+      s1 = Mix(x);
+      x += GOLDEN_GAMMA;
+      s2 = Mix(x);
+      x += GOLDEN_GAMMA;
+      s3 = Mix(x);
+   }
+
+   //The state must not be all zeros
+   public Xoshiro256(long s0, long s1, long s2, long s3) {
+      this.s0 = s0;
+      this.s1 = s1;
+      this.s2 = s2;
+      this.s3 = s3;
+   }
+
+   public Xoshiro256(Xoshiro256 other) {
+      this(other.s0, other.s1, other.s2, other.s3);
+   }
+
+   //Moves 2^128 draws ahead
+   public void Jump() {
+      long t0 = 0;
+      long t1 = 0;
+      long t2 = 0;
+      long t3 = 0;
+      for (long jump : JUMP) {
+         for (int bit = 0; bit < 64; bit++) {
+            if ((jump & (1L << bit)) != 0) {
+               t0 ^= s0;
+               t1 ^= s1;
+               t2 ^= s2;
+               t3 ^= s3;
+            }
+            nextLong();
+         }
+      }
+      s0 = t0;
+      s1 = t1;
+      s2 = t2;
+      s3 = t3;
+   }
+
+   //Returns a generator that starts where this one is, and jumps this one ahead so they never overlap
+   public Xoshiro256 Split() {
+      Xoshiro256 stream = new Xoshiro256(this);
+      Jump();
+      return stream;
+   }
+
+   //Checks the generator against the first outputs of the reference implementation
+   public static boolean CheckTestVectors() {
+      Xoshiro256 random = new Xoshiro256(1, 2, 3, 4);
+      long[] expected = {11520L, 0L, 1509978240L, 1215971899390074240L};
+      for (long value : expected) {
+         if (random.nextLong() != value) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   @Override
+   public long nextLong() {
+      long result = Long.rotateLeft(s1 * 5, 7) * 9;
+      long t = s1 << 17;
+      s2 ^= s0;
+      s3 ^= s1;
+      s1 ^= s2;
+      s0 ^= s3;
+      s2 ^= t;
+      s3 = Long.rotateLeft(s3, 45);
+      return result;
+   }
+
+   @Override
+   public int nextInt() {
+      return (int) (nextLong() >>> 32);
+   }
+
+   @Override
+   public int nextInt(int n) {
+      if (n <= 0) {
+         throw new IllegalArgumentException("n must be positive: " + n);
+      }
+      //The top 32 bits of a 32x32 bit product are uniform over [0, n), except for a few low parts
+      long product = (nextLong() >>> 32) * n;
+      long low = product & 0xFFFFFFFFL;
+      if (low < n) {
+         long threshold = (0x100000000L - n) % n;
+         while (low < threshold) {
+            product = (nextLong() >>> 32) * n;
+            low = product & 0xFFFFFFFFL;
+         }
+      }
+      return (int) (product >>> 32);
+   }
+
+   @Override
+   public double nextDouble() {
+      return (nextLong() >>> 11) * 0x1.0p-53;
+   }
+
+   @Override
+   public float nextFloat() {
+      return (nextLong() >>> 40) * 0x1.0p-24f;
+   }
+
+   @Override
+   public void SaveState(DataOutput out) throws IOException {
+      out.writeLong(s0);
+      out.writeLong(s1);
+      out.writeLong(s2);
+      out.writeLong(s3);
+   }
+
+   @Override
+   public void LoadState(DataInput in) throws IOException {
+      s0 = in.readLong();
+      s1 = in.readLong();
+      s2 = in.readLong();
+      s3 = in.readLong();
+   }
+
+   protected static long Mix(long z) {
+      z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+      z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+      return z ^ (z >>> 31);
+   }
+   protected static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+   protected static final long[] JUMP = {0x180ec6d33cfd0abaL, 0xd5a61266f0c9392cL, 0xa9582618e03fc9aaL, 0x39abdc4529b1661cL};
+   protected long s0;
+   protected long s1;
+   protected long s2;
+   protected long s3;
+}